@@ -28,6 +28,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Supplier;
 
@@ -55,6 +56,8 @@ public final class RemoteTransactionContext implements Contextual<RemoteTransact
 
     private final List<RemoteTransactionProvider> providers;
     private final List<CreationListener> creationListeners = new CopyOnWriteArrayList<>();
+    // the provider for each URI scheme which has been resolved
+    private final ConcurrentHashMap<String, SchemeEntry> providersByScheme = new ConcurrentHashMap<>();
 
     /**
      * Construct a new instance.  The given class loader is scanned for transaction providers.
@@ -228,11 +231,46 @@ public final class RemoteTransactionContext implements Contextual<RemoteTransact
     }
 
     RemoteTransactionProvider getProvider(final URI location) {
-        for (RemoteTransactionProvider provider : providers) {
-            if (provider.supportsScheme(location.getScheme())) {
+        final String scheme = location.getScheme();
+        final SchemeEntry entry = scheme == null ? null : providersByScheme.get(scheme);
+        if (entry != null && entry.provider.getSchemeSupportKey() == entry.key) {
+            return entry.provider;
+        }
+        final int size = providers.size();
+        for (int i = 0; i < size; i ++) {
+            final RemoteTransactionProvider provider = providers.get(i);
+            if (provider.supportsScheme(scheme)) {
+                if (scheme != null) cacheProvider(scheme, i);
                 return provider;
             }
         }
         return null;
     }
+
+    private void cacheProvider(final String scheme, final int index) {
+        // the answer stays valid while neither this provider nor any earlier one changes its set of schemes; that is
+        // checked with a single lookup, so only providers which all depend on the same thing can be cached
+        final RemoteTransactionProvider provider = providers.get(index);
+        final Object key = provider.getSchemeSupportKey();
+        if (key == null) {
+            return;
+        }
+        for (int i = 0; i < index; i ++) {
+            if (providers.get(i).getSchemeSupportKey() != key) {
+                return;
+            }
+        }
+        providersByScheme.put(scheme, new SchemeEntry(provider, key));
+    }
+
+    static final class SchemeEntry {
+        final RemoteTransactionProvider provider;
+        // the scheme support key shared by the provider and all of the ones before it
+        final Object key;
+
+        SchemeEntry(final RemoteTransactionProvider provider, final Object key) {
+            this.provider = provider;
+            this.key = key;
+        }
+    }
 }
@@ -51,6 +51,8 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     private long startTime = 0L;
     private volatile Xid xid;
     private int capturedTimeout;
+    // set when before-completion was deferred to be sent along with prepare (or one-phase commit)
+    private volatile boolean beforeCompletionDeferred;
 
     private final AtomicInteger stateRef = new AtomicInteger(0);
 
@@ -140,13 +142,31 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     }
 
     public void beforeCompletion(final Xid xid) throws XAException {
-        if (commitToEnlistment()) lookup(xid).beforeCompletion();
+        if (commitToEnlistment()) {
+            final SubordinateTransactionControl control = lookup(xid);
+            if (control.isBeforeCompletionDeferrable()) {
+                // save a round trip by running it together with prepare
+                beforeCompletionDeferred = true;
+            } else {
+                control.beforeCompletion();
+            }
+        }
     }
 
     public int prepare(final Xid xid) throws XAException {
         final int result;
         try {
-            result = commitToEnlistment() ? lookup(xid).prepare() : XA_RDONLY;
+            if (commitToEnlistment()) {
+                final SubordinateTransactionControl control = lookup(xid);
+                if (beforeCompletionDeferred) {
+                    beforeCompletionDeferred = false;
+                    result = control.beforeCompletionAndPrepare();
+                } else {
+                    result = control.prepare();
+                }
+            } else {
+                result = XA_RDONLY;
+            }
         } catch (XAException | RuntimeException exception) {
             if (resourceRegistry != null)
                 resourceRegistry.resourceInDoubt(this);
@@ -159,7 +179,14 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
 
     public void commit(final Xid xid, final boolean onePhase) throws XAException {
         try {
-            if (commitToEnlistment()) lookup(xid).commit(onePhase);
+            if (commitToEnlistment()) {
+                final SubordinateTransactionControl control = lookup(xid);
+                if (beforeCompletionDeferred) {
+                    beforeCompletionDeferred = false;
+                    control.beforeCompletion();
+                }
+                control.commit(onePhase);
+            }
         } catch (XAException | RuntimeException exception) {
             if (onePhase && resourceRegistry != null)
                 resourceRegistry.resourceInDoubt(this);
@@ -170,6 +197,7 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     }
 
     public void rollback(final Xid xid) throws XAException {
+        beforeCompletionDeferred = false;
         try {
             if (commitToEnlistment()) lookup(xid).rollback();
         } catch (XAException | RuntimeException e) {
@@ -186,7 +214,7 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     }
 
     private SubordinateTransactionControl lookup(final Xid xid) throws XAException {
-        return getProvider().getPeerHandleForXa(location, null, null).lookupXid(xid);
+        return getProvider().getPeerHandleForXa(location, null, null).lookupXid(xid, getRemainingMillis());
     }
 
     private RemoteTransactionProvider getProvider() {
@@ -228,6 +256,11 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     int getRemainingTime() {
         long elapsed = max(0L, System.nanoTime() - startTime);
         final int capturedTimeout = this.capturedTimeout;
-        return capturedTimeout - (int) min(capturedTimeout, elapsed / 1_000_000L);
+        return capturedTimeout - (int) min(capturedTimeout, elapsed / 1_000_000_000L);
+    }
+
+    long getRemainingMillis() {
+        long elapsed = max(0L, System.nanoTime() - startTime);
+        return capturedTimeout * 1000L - elapsed / 1_000_000L;
     }
 }
@@ -20,6 +20,7 @@ package org.wildfly.transaction.client._private;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
@@ -71,6 +72,14 @@ public interface Log extends BasicLogger {
     @Message(id = 98, value = "Error while removing imported transaction of xid %s from the underlying transaction manager")
     void cannotRemoveImportedTransaction(Xid xid, @Cause XAException e);
 
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 100, value = "One-way request for transaction %s failed")
+    void oneWayRequestFailed(Xid xid, @Cause Throwable e);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 107, value = "Unexpected failure opening a transaction channel to %s in advance; retrying in %d ms")
+    void preconnectFailedUnexpectedly(URI location, long retryMillis, @Cause Throwable e);
+
     // Debug
 
     @LogMessage(level = Logger.Level.DEBUG)
@@ -81,6 +90,14 @@ public interface Log extends BasicLogger {
     @Message(value = "Closing the recovery stream after recovery failed threw an exception")
     void recoverySuppressedException(@Cause XAException e);
 
+    @LogMessage(level = Logger.Level.DEBUG)
+    @Message(value = "Failed to open a transaction channel to %s in advance; retrying in %d ms")
+    void preconnectFailed(URI location, long retryMillis, @Cause Throwable e);
+
+    @LogMessage(level = Logger.Level.DEBUG)
+    @Message(value = "Ignoring invalid peer location \"%s\" to connect to in advance")
+    void invalidPreconnectLocation(String location, @Cause Throwable e);
+
     // Trace
 
     @LogMessage(level = Logger.Level.TRACE)
@@ -412,4 +429,31 @@ public interface Log extends BasicLogger {
 
     @Message(id = 96, value = "Unexpected exception on XA recovery")
     IllegalStateException unexpectedExceptionOnXAResourceRecovery(@Cause IOException e);
+
+    @Message(id = 99, value = "No response was received from the peer within %d seconds")
+    IOException responseTimedOut(int timeout);
+
+    @Message(id = 101, value = "Requests to peer %s are suspended after repeated communication failures")
+    XAException peerUnavailable(@Field int errorCode, URI location);
+
+    @Message(id = 102, value = "Too many concurrent requests to peer %s")
+    XAException peerBusy(@Field int errorCode, URI location);
+
+    @Message(id = 103, value = "Injected failure of %s operation")
+    SystemException injectedFault(Object operation);
+
+    @Message(id = 104, value = "Injected failure of %s operation")
+    XAException injectedFaultXA(@Field int errorCode, Object operation);
+
+    @Message(id = 105, value = "Probability %s is not between 0 and 1")
+    IllegalArgumentException invalidProbability(double probability);
+
+    @Message(id = 106, value = "Peer did not acknowledge the transaction channel within %d seconds")
+    InterruptedIOException channelOpenTimedOut(int timeout);
+
+    @Message(id = 108, value = "No security identity is associated with context ID %d")
+    SecurityException unknownSecurityContext(long id);
+
+    @Message(id = 109, value = "Transaction %d was rolled back because it was not completed in time")
+    RollbackException transactionReaped(int id);
 }
@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.invm;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.wildfly.common.annotation.NotNull;
+import org.wildfly.transaction.client.ImportResult;
+import org.wildfly.transaction.client.LocalTransaction;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client._private.Log;
+import org.wildfly.transaction.client.spi.RemoteTransactionPeer;
+import org.wildfly.transaction.client.spi.SimpleTransactionControl;
+import org.wildfly.transaction.client.spi.SubordinateTransactionControl;
+
+/**
+ * A peer which is the local transaction context of this JVM.  Each operation is carried out directly on the local
+ * transaction, in the same way as the remoting transaction server would carry out the corresponding request.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class InVMRemoteTransactionPeer implements RemoteTransactionPeer {
+    private final LocalTransactionContext localTransactionContext;
+
+    InVMRemoteTransactionPeer(final LocalTransactionContext localTransactionContext) {
+        this.localTransactionContext = localTransactionContext;
+    }
+
+    @NotNull
+    public SubordinateTransactionControl lookupXid(final Xid xid) throws XAException {
+        final SimpleXid simpleXid = SimpleXid.of(xid);
+        return new SubordinateTransactionControl() {
+            public void rollback() throws XAException {
+                try {
+                    final ImportResult<LocalTransaction> importResult = find(simpleXid, true);
+                    // run operation while associated
+                    importResult.getTransaction().performConsumer(SubordinateTransactionControl::rollback, importResult.getControl());
+                } catch (SystemException e) {
+                    final XAException xae = new XAException(XAException.XAER_RMERR);
+                    xae.initCause(e);
+                    throw xae;
+                }
+            }
+
+            public void end(final int flags) throws XAException {
+                if (flags == XAResource.TMFAIL) {
+                    find(simpleXid, true).getControl().end(XAResource.TMFAIL);
+                }
+            }
+
+            public void beforeCompletion() throws XAException {
+                try {
+                    final ImportResult<LocalTransaction> importResult = find(simpleXid, true);
+                    // run operation while associated
+                    importResult.getTransaction().performConsumer(SubordinateTransactionControl::beforeCompletion, importResult.getControl());
+                } catch (SystemException e) {
+                    final XAException xae = new XAException(XAException.XAER_RMERR);
+                    xae.initCause(e);
+                    throw xae;
+                }
+            }
+
+            public int prepare() throws XAException {
+                final ImportResult<LocalTransaction> importResult = find(simpleXid, true);
+                return ! importResult.getTransaction().isImported() ? XAResource.XA_RDONLY : importResult.getControl().prepare();
+            }
+
+            public boolean isBeforeCompletionDeferrable() {
+                // there is no round trip to save
+                return false;
+            }
+
+            public void forget() throws XAException {
+                find(simpleXid, true).getControl().forget();
+            }
+
+            public void commit(final boolean onePhase) throws XAException {
+                find(simpleXid, ! onePhase).getControl().commit(onePhase);
+            }
+        };
+    }
+
+    ImportResult<LocalTransaction> find(final SimpleXid xid, final boolean doNotImport) throws XAException {
+        final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(xid, 0, doNotImport);
+        if (importResult == null) {
+            throw new XAException(XAException.XAER_NOTA);
+        }
+        return importResult;
+    }
+
+    @NotNull
+    public Xid[] recover(final int flag, final String parentName) throws XAException {
+        return localTransactionContext.getRecoveryInterface().recover(flag, parentName);
+    }
+
+    @NotNull
+    public SimpleTransactionControl begin(final int timeout) throws SystemException {
+        final LocalTransaction transaction = localTransactionContext.beginTransaction(timeout, true);
+        return new SimpleTransactionControl() {
+            public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, SystemException {
+                try {
+                    transaction.performAction(transaction::commit);
+                } catch (RollbackException | HeuristicMixedException | HeuristicRollbackException | SecurityException | SystemException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw Log.log.unexpectedException(e);
+                }
+            }
+
+            public void rollback() throws SecurityException, SystemException {
+                try {
+                    transaction.performAction(transaction::rollback);
+                } catch (SecurityException | SystemException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw Log.log.unexpectedException(e);
+                }
+            }
+
+            public void setRollbackOnly() throws SystemException {
+                transaction.setRollbackOnly();
+            }
+
+            public <T> T getProviderInterface(final Class<T> clazz) {
+                return transaction.getProviderInterface(clazz);
+            }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.invm;
+
+import java.net.URI;
+
+import javax.net.ssl.SSLContext;
+import javax.transaction.SystemException;
+
+import org.kohsuke.MetaInfServices;
+import org.wildfly.security.auth.client.AuthenticationConfiguration;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.wildfly.transaction.client.spi.RemoteTransactionPeer;
+import org.wildfly.transaction.client.spi.RemoteTransactionProvider;
+
+/**
+ * A transaction provider for peers in the same JVM, using the {@code invm} URI scheme.  Requests to such a peer are
+ * carried out directly on the current local transaction context, without any encoding or network transport.  The
+ * rest of the location URI is ignored.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+@MetaInfServices
+public final class InVMRemoteTransactionProvider implements RemoteTransactionProvider {
+    /**
+     * The URI scheme of in-VM peers.
+     */
+    public static final String SCHEME = "invm";
+
+    /**
+     * Construct a new instance.
+     */
+    public InVMRemoteTransactionProvider() {
+    }
+
+    public boolean supportsScheme(final String scheme) {
+        return SCHEME.equals(scheme);
+    }
+
+    public Object getSchemeSupportKey() {
+        // the one scheme never changes
+        return SCHEME;
+    }
+
+    public RemoteTransactionPeer getPeerHandle(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration) throws SystemException {
+        return SCHEME.equals(location.getScheme()) ? new InVMRemoteTransactionPeer(LocalTransactionContext.getCurrent()) : null;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.transaction.xa.Xid;
+
+import org.jboss.remoting3.ConnectionPeerIdentity;
+
+/**
+ * The non-blocking counterpart of {@link RemotingOperations}.  Each operation returns as soon as the request is
+ * written; the returned stage is completed by the thread which receives the peer's response, or exceptionally with
+ * an {@link javax.transaction.xa.XAException XAException} (or {@link SecurityException}) if the operation fails.
+ * Dependent actions which may block should therefore be run asynchronously.  The {@code timeout} variants fail the
+ * returned stage with {@code XAER_RMFAIL} if no response arrives within the given number of seconds (0 means no
+ * limit); the timeout is also passed to the peer, which may then decline to start work that can no longer be answered
+ * in time.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public interface AsyncRemotingOperations {
+    default CompletionStage<Void> commitAsync(Xid xid, boolean onePhase, ConnectionPeerIdentity peerIdentity) {
+        return commitAsync(xid, onePhase, peerIdentity, 0);
+    }
+
+    CompletionStage<Void> commitAsync(Xid xid, boolean onePhase, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    default CompletionStage<Void> forgetAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return forgetAsync(xid, peerIdentity, 0);
+    }
+
+    CompletionStage<Void> forgetAsync(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    default CompletionStage<Integer> prepareAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return prepareAsync(xid, peerIdentity, 0);
+    }
+
+    CompletionStage<Integer> prepareAsync(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    default CompletionStage<Void> rollbackAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return rollbackAsync(xid, peerIdentity, 0);
+    }
+
+    CompletionStage<Void> rollbackAsync(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    default CompletionStage<Void> setRollbackOnlyAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return setRollbackOnlyAsync(xid, peerIdentity, 0);
+    }
+
+    CompletionStage<Void> setRollbackOnlyAsync(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    default CompletionStage<Void> beforeCompletionAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAsync(xid, peerIdentity, 0);
+    }
+
+    CompletionStage<Void> beforeCompletionAsync(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    default CompletionStage<Integer> beforeCompletionAndPrepareAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAndPrepareAsync(xid, peerIdentity, 0);
+    }
+
+    CompletionStage<Integer> beforeCompletionAndPrepareAsync(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout);
+
+    CompletionStage<Xid[]> recoverAsync(int flag, String parentName, ConnectionPeerIdentity peerIdentity);
+}
@@ -0,0 +1,403 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.Xid;
+
+import org.jboss.remoting3.ConnectionPeerIdentity;
+import org.wildfly.common.Assert;
+import org.wildfly.transaction.client._private.Log;
+import org.wildfly.transaction.client.spi.SimpleTransactionControl;
+
+/**
+ * An operations handler which delays or fails the requests passed to another handler, to reproduce the behavior of a
+ * slow or unreliable network without one.  For each kind of operation, a request is delayed by a random latency,
+ * and may additionally be stalled, dropped, or failed:
+ * <ul>
+ *     <li>a stalled request is delayed by a further fixed time before it is sent;</li>
+ *     <li>a dropped request is never sent, and fails with {@code XAER_RMFAIL} once its timeout has passed, as if no
+ *     response had arrived;</li>
+ *     <li>a failed request is never sent, and fails with {@code XAER_RMFAIL} right away, as if the connection had
+ *     been lost.</li>
+ * </ul>
+ * This class is meant for testing and benchmarking only.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class FaultInjectingRemotingOperations implements RemotingOperations {
+
+    /**
+     * The kinds of operation which can be configured separately.
+     */
+    public enum Operation {
+        BEGIN,
+        BEFORE_COMPLETION,
+        BEFORE_COMPLETION_AND_PREPARE,
+        PREPARE,
+        COMMIT,
+        ROLLBACK,
+        ROLLBACK_ONLY,
+        FORGET,
+        RECOVER,
+        ;
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private static final int SENT = 0;
+    private static final int DROPPED = 1;
+    private static final int FAILED = 2;
+
+    private final RemotingOperations delegate;
+    private final Faults[] faults;
+    private final long dropWaitMillis;
+
+    FaultInjectingRemotingOperations(final RemotingOperations delegate, final Faults[] faults, final long dropWaitMillis) {
+        this.delegate = delegate;
+        this.faults = faults;
+        this.dropWaitMillis = dropWaitMillis;
+    }
+
+    /**
+     * Get the wrapped operations handler.
+     *
+     * @return the wrapped operations handler (not {@code null})
+     */
+    public RemotingOperations getDelegate() {
+        return delegate;
+    }
+
+    private void injectXA(final Operation operation, final int timeout) throws XAException {
+        final int outcome;
+        try {
+            outcome = inject(operation, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Log.log.operationInterruptedXA(XAException.XAER_RMFAIL);
+        }
+        if (outcome == DROPPED) {
+            throw Log.log.failedToReceiveXA(Log.log.responseTimedOut(timeout), XAException.XAER_RMFAIL);
+        } else if (outcome == FAILED) {
+            throw Log.log.injectedFaultXA(XAException.XAER_RMFAIL, operation);
+        }
+    }
+
+    private void injectSystem(final Operation operation, final int timeout) throws SystemException {
+        final int outcome;
+        try {
+            outcome = inject(operation, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Log.log.operationInterrupted();
+        }
+        if (outcome != SENT) {
+            throw Log.log.injectedFault(operation);
+        }
+    }
+
+    private int inject(final Operation operation, final int timeout) throws InterruptedException {
+        final Faults faults = this.faults[operation.ordinal()];
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delayMillis = faults.minLatencyMillis;
+        if (faults.maxLatencyMillis > delayMillis) {
+            delayMillis += random.nextLong(faults.maxLatencyMillis - delayMillis + 1);
+        }
+        if (faults.stallProbability > 0.0 && random.nextDouble() < faults.stallProbability) {
+            delayMillis += faults.stallMillis;
+        }
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+        if (faults.dropProbability > 0.0 && random.nextDouble() < faults.dropProbability) {
+            // wait for the response which will never come
+            Thread.sleep(timeout > 0 ? TimeUnit.SECONDS.toMillis(timeout) : dropWaitMillis);
+            return DROPPED;
+        }
+        if (faults.errorProbability > 0.0 && random.nextDouble() < faults.errorProbability) {
+            return FAILED;
+        }
+        return SENT;
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        commit(xid, onePhase, peerIdentity, 0);
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.COMMIT, timeout);
+        delegate.commit(xid, onePhase, peerIdentity, timeout);
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        forget(xid, peerIdentity, 0);
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.FORGET, timeout);
+        delegate.forget(xid, peerIdentity, timeout);
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return prepare(xid, peerIdentity, 0);
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.PREPARE, timeout);
+        return delegate.prepare(xid, peerIdentity, timeout);
+    }
+
+    public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        rollback(xid, peerIdentity, 0);
+    }
+
+    public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.ROLLBACK, timeout);
+        delegate.rollback(xid, peerIdentity, timeout);
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        setRollbackOnly(xid, peerIdentity, 0);
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.ROLLBACK_ONLY, timeout);
+        delegate.setRollbackOnly(xid, peerIdentity, timeout);
+    }
+
+    public void deferRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        // faulted like an immediate mark, whether or not it ends up being held back
+        injectXA(Operation.ROLLBACK_ONLY, timeout);
+        delegate.deferRollbackOnly(xid, peerIdentity, timeout);
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        beforeCompletion(xid, peerIdentity, 0);
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.BEFORE_COMPLETION, timeout);
+        delegate.beforeCompletion(xid, peerIdentity, timeout);
+    }
+
+    public int beforeCompletionAndPrepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return beforeCompletionAndPrepare(xid, peerIdentity, 0);
+    }
+
+    public int beforeCompletionAndPrepare(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        injectXA(Operation.BEFORE_COMPLETION_AND_PREPARE, timeout);
+        return delegate.beforeCompletionAndPrepare(xid, peerIdentity, timeout);
+    }
+
+    public boolean isBeforeCompletionDeferrable() {
+        return delegate.isBeforeCompletionDeferrable();
+    }
+
+    public Xid[] recover(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        injectXA(Operation.RECOVER, 0);
+        return delegate.recover(flag, parentName, peerIdentity);
+    }
+
+    public SimpleTransactionControl begin(final ConnectionPeerIdentity peerIdentity) throws SystemException {
+        return begin(peerIdentity, 0);
+    }
+
+    public SimpleTransactionControl begin(final ConnectionPeerIdentity peerIdentity, final int timeout) throws SystemException {
+        injectSystem(Operation.BEGIN, timeout);
+        return delegate.begin(peerIdentity, timeout);
+    }
+
+    /**
+     * Construct a new builder.  Initially, no faults are injected.
+     *
+     * @return the new builder (not {@code null})
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A builder for fault injecting operations handlers.  Each setter applies to the given kinds of operation, or to
+     * every kind of operation if none are given.
+     */
+    public static final class Builder {
+        private static final long DEFAULT_DROP_WAIT_MILLIS = 30_000L;
+
+        private final Faults[] faults = new Faults[OPERATIONS.length];
+        private long dropWaitMillis = DEFAULT_DROP_WAIT_MILLIS;
+
+        Builder() {
+            for (int i = 0; i < faults.length; i ++) {
+                faults[i] = new Faults();
+            }
+        }
+
+        /**
+         * Set the latency added to each request, which is evenly distributed between the given bounds.
+         *
+         * @param minMillis the minimum latency in milliseconds
+         * @param maxMillis the maximum latency in milliseconds (must not be less than {@code minMillis})
+         * @param operations the operations to apply the setting to
+         * @return this builder
+         */
+        public Builder setLatency(final long minMillis, final long maxMillis, final Operation... operations) {
+            Assert.checkMinimumParameter("minMillis", 0L, minMillis);
+            Assert.checkMinimumParameter("maxMillis", minMillis, maxMillis);
+            for (Faults faults : select(operations)) {
+                faults.minLatencyMillis = minMillis;
+                faults.maxLatencyMillis = maxMillis;
+            }
+            return this;
+        }
+
+        /**
+         * Set the probability of a request being stalled, and how long a stalled request is held for in addition to
+         * its latency.
+         *
+         * @param probability the probability, between 0 and 1
+         * @param stallMillis the stall time in milliseconds
+         * @param operations the operations to apply the setting to
+         * @return this builder
+         */
+        public Builder setStall(final double probability, final long stallMillis, final Operation... operations) {
+            checkProbability(probability);
+            Assert.checkMinimumParameter("stallMillis", 0L, stallMillis);
+            for (Faults faults : select(operations)) {
+                faults.stallProbability = probability;
+                faults.stallMillis = stallMillis;
+            }
+            return this;
+        }
+
+        /**
+         * Set the probability of a request being dropped.
+         *
+         * @param probability the probability, between 0 and 1
+         * @param operations the operations to apply the setting to
+         * @return this builder
+         */
+        public Builder setDropProbability(final double probability, final Operation... operations) {
+            checkProbability(probability);
+            for (Faults faults : select(operations)) {
+                faults.dropProbability = probability;
+            }
+            return this;
+        }
+
+        /**
+         * Set the probability of a request failing with {@code XAER_RMFAIL} (or a {@code SystemException}).
+         *
+         * @param probability the probability, between 0 and 1
+         * @param operations the operations to apply the setting to
+         * @return this builder
+         */
+        public Builder setErrorProbability(final double probability, final Operation... operations) {
+            checkProbability(probability);
+            for (Faults faults : select(operations)) {
+                faults.errorProbability = probability;
+            }
+            return this;
+        }
+
+        /**
+         * Set how long a dropped request without a timeout waits before it fails.  The default is 30 seconds.
+         *
+         * @param dropWaitMillis the wait time in milliseconds
+         * @return this builder
+         */
+        public Builder setDropWaitMillis(final long dropWaitMillis) {
+            Assert.checkMinimumParameter("dropWaitMillis", 0L, dropWaitMillis);
+            this.dropWaitMillis = dropWaitMillis;
+            return this;
+        }
+
+        /**
+         * Build a fault injecting handler around the given operations handler.
+         *
+         * @param delegate the operations handler to wrap (must not be {@code null})
+         * @return the fault injecting handler (not {@code null})
+         */
+        public FaultInjectingRemotingOperations build(final RemotingOperations delegate) {
+            Assert.checkNotNullParam("delegate", delegate);
+            final Faults[] copy = new Faults[faults.length];
+            for (int i = 0; i < copy.length; i ++) {
+                copy[i] = new Faults(faults[i]);
+            }
+            return new FaultInjectingRemotingOperations(delegate, copy, dropWaitMillis);
+        }
+
+        /**
+         * Build a fallback peer provider whose operations handlers inject faults into those of the given provider.
+         *
+         * @param delegate the fallback peer provider to wrap (must not be {@code null})
+         * @return the fault injecting fallback peer provider (not {@code null})
+         */
+        public RemotingFallbackPeerProvider buildFallbackPeerProvider(final RemotingFallbackPeerProvider delegate) {
+            Assert.checkNotNullParam("delegate", delegate);
+            final Builder builder = new Builder();
+            builder.dropWaitMillis = dropWaitMillis;
+            for (int i = 0; i < faults.length; i ++) {
+                builder.faults[i] = new Faults(faults[i]);
+            }
+            return connection -> builder.build(delegate.getOperations(connection));
+        }
+
+        private Faults[] select(final Operation[] operations) {
+            if (operations.length == 0) {
+                return faults;
+            }
+            final Faults[] selected = new Faults[operations.length];
+            for (int i = 0; i < operations.length; i ++) {
+                selected[i] = faults[Assert.checkNotNullArrayParam("operations", i, operations[i]).ordinal()];
+            }
+            return selected;
+        }
+
+        private static void checkProbability(final double probability) {
+            if (! (probability >= 0.0 && probability <= 1.0)) {
+                throw Log.log.invalidProbability(probability);
+            }
+        }
+    }
+
+    static final class Faults {
+        long minLatencyMillis;
+        long maxLatencyMillis;
+        double stallProbability;
+        long stallMillis;
+        double dropProbability;
+        double errorProbability;
+
+        Faults() {
+        }
+
+        Faults(final Faults original) {
+            minLatencyMillis = original.minLatencyMillis;
+            maxLatencyMillis = original.maxLatencyMillis;
+            stallProbability = original.stallProbability;
+            stallMillis = original.stallMillis;
+            dropProbability = original.dropProbability;
+            errorProbability = original.errorProbability;
+        }
+    }
+}
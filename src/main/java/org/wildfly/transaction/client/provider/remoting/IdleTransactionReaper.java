@@ -0,0 +1,233 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+
+import org.wildfly.transaction.client.LocalTransaction;
+import org.xnio.XnioWorker;
+
+/**
+ * Evicts user transactions which a client began but never completed, once they are well past their timeout.  Each
+ * transaction is tracked on a timer wheel against its deadline, and taken off the wheel when the client completes it.
+ * If its slot comes around first, it is rolled back if the provider has not already done so, and its entry is kept on
+ * the connection for a while without the transaction, so that a late commit learns that the transaction was rolled
+ * back rather than finding nothing to commit.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class IdleTransactionReaper {
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, RemotingProperties.getLong("ut-reaper-tick-millis", 1000L)));
+    static final long GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, RemotingProperties.getLong("ut-reaper-grace-millis", 30000L)));
+    static final long TOMBSTONE_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, RemotingProperties.getLong("ut-reaper-tombstone-millis", 300000L)));
+
+    static final int WHEEL_SIZE = 512;
+
+    private final RemotingTransactionService transactionService;
+    private final XnioWorker worker;
+    private final LongAdder reaped = new LongAdder();
+    // the first entry of each slot's list; protected by {@code this}
+    private final Entry[] wheel = new Entry[WHEEL_SIZE];
+    private int cursor;
+    private int tracked;
+    private boolean ticking;
+
+    IdleTransactionReaper(final RemotingTransactionService transactionService, final XnioWorker worker) {
+        this.transactionService = transactionService;
+        this.worker = worker;
+    }
+
+    /**
+     * Determine whether idle transactions are reaped at all with the current configuration.
+     *
+     * @return {@code true} if transactions should be tracked
+     */
+    static boolean isEnabled() {
+        return TICK_NANOS > 0L;
+    }
+
+    /**
+     * Start tracking a newly begun transaction.
+     *
+     * @param server the server of the connection which began the transaction
+     * @param txn the transaction entry
+     * @param timeout the transaction timeout in seconds
+     */
+    void track(final RemotingTransactionServer server, final RemotingTransactionServer.LocalTxn txn, final int timeout) {
+        track(server, txn, TimeUnit.SECONDS.toNanos(timeout) + GRACE_NANOS);
+    }
+
+    private void track(final RemotingTransactionServer server, final RemotingTransactionServer.LocalTxn txn, final long delay) {
+        if (add(server, txn, delay)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Put a transaction on the wheel, to come due once the given delay has passed.
+     *
+     * @param server the server of the connection which began the transaction
+     * @param txn the transaction entry
+     * @param delay the delay in nanoseconds
+     * @return {@code true} if the wheel was idle and must be started
+     */
+    synchronized boolean add(final RemotingTransactionServer server, final RemotingTransactionServer.LocalTxn txn, final long delay) {
+        // round up, so that no transaction is looked at early
+        final long ticks = Math.max(1L, (delay + TICK_NANOS - 1) / TICK_NANOS);
+        final Entry entry = new Entry(server, txn, (ticks - 1) / WHEEL_SIZE);
+        link(entry, (int) ((cursor + ticks) % WHEEL_SIZE));
+        txn.reaperEntry = entry;
+        final boolean start = ! ticking;
+        ticking = true;
+        return start;
+    }
+
+    /**
+     * Stop tracking a transaction which was removed from its connection, so that the wheel does not keep it alive.
+     *
+     * @param txn the transaction entry
+     */
+    void untrack(final RemotingTransactionServer.LocalTxn txn) {
+        synchronized (this) {
+            final Entry entry = txn.reaperEntry;
+            if (entry != null) {
+                unlink(entry);
+            }
+        }
+    }
+
+    long getReapedCount() {
+        return reaped.sum();
+    }
+
+    private void link(final Entry entry, final int slot) {
+        assert Thread.holdsLock(this);
+        final Entry head = wheel[slot];
+        entry.slot = slot;
+        entry.next = head;
+        if (head != null) head.prev = entry;
+        wheel[slot] = entry;
+        tracked ++;
+    }
+
+    private void unlink(final Entry entry) {
+        assert Thread.holdsLock(this);
+        final Entry prev = entry.prev;
+        final Entry next = entry.next;
+        if (prev == null) {
+            wheel[entry.slot] = next;
+        } else {
+            prev.next = next;
+        }
+        if (next != null) next.prev = prev;
+        entry.prev = entry.next = null;
+        entry.txn.reaperEntry = null;
+        tracked --;
+    }
+
+    private void schedule() {
+        // the timer fires on an I/O thread; reaping may block, so hand it off to the worker
+        worker.getIoThread().executeAfter(() -> worker.execute(this::tick), TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Move the wheel on by one tick, taking off the entries which have come due.
+     *
+     * @param due the list to add the due entries to
+     * @return {@code true} if entries remain on the wheel, so that it must keep ticking
+     */
+    synchronized boolean advance(final ArrayList<Entry> due) {
+        cursor = (cursor + 1) % WHEEL_SIZE;
+        Entry entry = wheel[cursor];
+        while (entry != null) {
+            final Entry next = entry.next;
+            if (entry.rounds == 0) {
+                unlink(entry);
+                due.add(entry);
+            } else {
+                entry.rounds --;
+            }
+            entry = next;
+        }
+        return ticking = tracked > 0;
+    }
+
+    private void tick() {
+        final ArrayList<Entry> due = new ArrayList<>();
+        if (advance(due)) {
+            schedule();
+        }
+        final ArrayList<LocalTransaction> orphans = new ArrayList<>();
+        for (Entry entry : due) {
+            final RemotingTransactionServer.LocalTxn txn = entry.txn;
+            if (txn.isReaped()) {
+                // a late commit has had its chance to learn the outcome
+                entry.server.getTxnMap().remove(txn);
+                continue;
+            }
+            final LocalTransaction transaction = txn.reap();
+            if (transaction != null) {
+                // the client never completed it; the entry stays as a marker for a while
+                reaped.increment();
+                if (isUnfinished(transaction)) {
+                    orphans.add(transaction);
+                }
+                track(entry.server, txn, TOMBSTONE_NANOS);
+            }
+        }
+        if (! orphans.isEmpty()) {
+            transactionService.rollbackOrphans(orphans);
+        }
+    }
+
+    private static boolean isUnfinished(final LocalTransaction transaction) {
+        try {
+            final int status = transaction.getStatus();
+            return status != Status.STATUS_NO_TRANSACTION && status != Status.STATUS_COMMITTED && status != Status.STATUS_ROLLEDBACK;
+        } catch (SystemException e) {
+            // let the rollback sort it out
+            return true;
+        }
+    }
+
+    static final class Entry {
+        private final RemotingTransactionServer server;
+        private final RemotingTransactionServer.LocalTxn txn;
+        // remaining trips around the wheel, and the place in the slot's list; protected by the reaper
+        private long rounds;
+        private int slot;
+        private Entry prev;
+        private Entry next;
+
+        Entry(final RemotingTransactionServer server, final RemotingTransactionServer.LocalTxn txn, final long rounds) {
+            this.server = server;
+            this.txn = txn;
+            this.rounds = rounds;
+        }
+
+        RemotingTransactionServer.LocalTxn getTxn() {
+            return txn;
+        }
+    }
+}
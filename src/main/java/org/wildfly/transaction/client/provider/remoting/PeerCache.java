@@ -0,0 +1,178 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+
+import org.jboss.remoting3.Endpoint;
+import org.wildfly.security.auth.client.AuthenticationConfiguration;
+
+/**
+ * A bounded cache of peer handles, so that the per-peer state is kept between operations.  Entries which have not
+ * been used for a while are evicted, as is the entry of a peer whose connection closes.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class PeerCache {
+    static final int MAX_SIZE = Math.max(1, RemotingProperties.getInt("peer-cache-max", 256));
+    static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(Math.max(1, RemotingProperties.getInt("peer-cache-idle-seconds", 300)));
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    // a guard outlives the peer entries as long as it counts failures, so that a failing peer stays suspended when its entry is evicted
+    private final ConcurrentHashMap<URI, PeerGuard> guards = new ConcurrentHashMap<>();
+    private final RemotingFallbackPeerProvider fallbackProvider;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    PeerCache(final RemotingFallbackPeerProvider fallbackProvider) {
+        this.fallbackProvider = fallbackProvider;
+    }
+
+    RemotingRemoteTransactionPeer get(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint) {
+        final Key key = new Key(location, sslContext, authenticationConfiguration, endpoint);
+        final long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (now - entry.lastUsed < IDLE_NANOS) {
+                entry.lastUsed = now;
+                hits.increment();
+                return entry.peer;
+            }
+            if (entries.remove(key, entry)) evicted(key, entry);
+        }
+        misses.increment();
+        final Entry newEntry = new Entry(now);
+        newEntry.peer = new RemotingRemoteTransactionPeer(location, sslContext, authenticationConfiguration, endpoint, fallbackProvider, () -> {
+            // the connection is gone, so the next lookup starts over
+            if (entries.remove(key, newEntry)) evicted(key, newEntry);
+        }, guardFor(location));
+        entry = entries.putIfAbsent(key, newEntry);
+        if (entry != null) {
+            entry.lastUsed = now;
+            return entry.peer;
+        }
+        if (entries.size() > MAX_SIZE) {
+            evict(now);
+        }
+        return newEntry.peer;
+    }
+
+    private PeerGuard guardFor(final URI location) {
+        return PeerGuard.isEnabled() ? guards.computeIfAbsent(location, PeerGuard::new) : null;
+    }
+
+    private void evict(final long now) {
+        // drop the idle entries; failing that, the least recently used one
+        Map.Entry<Key, Entry> oldest = null;
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Key, Entry> mapEntry = iterator.next();
+            final long lastUsed = mapEntry.getValue().lastUsed;
+            if (now - lastUsed >= IDLE_NANOS) {
+                iterator.remove();
+                evicted(mapEntry.getKey(), mapEntry.getValue());
+            } else if (oldest == null || lastUsed - oldest.getValue().lastUsed < 0) {
+                oldest = mapEntry;
+            }
+        }
+        if (entries.size() > MAX_SIZE && oldest != null && entries.remove(oldest.getKey(), oldest.getValue())) {
+            evicted(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private void evicted(final Key key, final Entry entry) {
+        evictions.increment();
+        entry.peer.release();
+        final URI location = key.location;
+        final PeerGuard guard = guards.get(location);
+        if (guard == null || ! guard.isIdle()) {
+            return;
+        }
+        for (Key other : entries.keySet()) {
+            if (other.location.equals(location)) {
+                // still in use
+                return;
+            }
+        }
+        // a peer created meanwhile may keep the old guard; that only loosens its concurrency limit for a while
+        guards.remove(location, guard);
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    int getSize() {
+        return entries.size();
+    }
+
+    static final class Entry {
+        RemotingRemoteTransactionPeer peer;
+        volatile long lastUsed;
+
+        Entry(final long lastUsed) {
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    static final class Key {
+        private final URI location;
+        private final SSLContext sslContext;
+        private final AuthenticationConfiguration authenticationConfiguration;
+        private final Endpoint endpoint;
+        private final int hashCode;
+
+        Key(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint) {
+            this.location = location;
+            this.sslContext = sslContext;
+            this.authenticationConfiguration = authenticationConfiguration;
+            this.endpoint = endpoint;
+            hashCode = Objects.hash(location, sslContext, authenticationConfiguration, endpoint);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(final Object obj) {
+            return obj instanceof Key && equals((Key) obj);
+        }
+
+        private boolean equals(final Key other) {
+            return this == other || other != null && hashCode == other.hashCode && location.equals(other.location) && sslContext == other.sslContext && Objects.equals(authenticationConfiguration, other.authenticationConfiguration) && endpoint == other.endpoint;
+        }
+    }
+}
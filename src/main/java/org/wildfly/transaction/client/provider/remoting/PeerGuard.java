@@ -0,0 +1,171 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.xa.XAException;
+
+import org.wildfly.transaction.client._private.Log;
+
+/**
+ * Limits the XA requests outstanding to one peer, and stops sending requests for a while to a peer which keeps
+ * failing to answer, so that an unreachable peer cannot tie up every thread of the caller.  After the pause, a single
+ * request is let through; the peer is considered reachable again once that request gets an answer.
+ * <p>
+ * Only transport failures count against a peer: a request which could not be sent, or whose answer never came.  An
+ * XA error reported by the peer shows that it is reachable, whatever its code.
+ * <p>
+ * Both are off unless configured, with the {@code peer-max-concurrent} and {@code peer-failure-threshold} properties.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class PeerGuard {
+    static final int MAX_CONCURRENT = RemotingProperties.getInt("peer-max-concurrent", 0);
+    static final long ACQUIRE_TIMEOUT_MILLIS = Math.max(0L, RemotingProperties.getLong("peer-acquire-timeout-millis", 5000L));
+    static final int FAILURE_THRESHOLD = RemotingProperties.getInt("peer-failure-threshold", 0);
+    static final long OPEN_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, RemotingProperties.getLong("peer-open-millis", 5000L)));
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final URI location;
+    private final int maxConcurrent;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Semaphore permits;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long openedAt;
+
+    PeerGuard(final URI location) {
+        this(location, MAX_CONCURRENT, FAILURE_THRESHOLD, OPEN_NANOS);
+    }
+
+    PeerGuard(final URI location, final int maxConcurrent, final int failureThreshold, final long openNanos) {
+        this.location = location;
+        this.maxConcurrent = maxConcurrent;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+    }
+
+    /**
+     * Determine whether peers need guarding at all with the current configuration.
+     *
+     * @return {@code true} if requests should go through a guard
+     */
+    static boolean isEnabled() {
+        return MAX_CONCURRENT > 0 || FAILURE_THRESHOLD > 0;
+    }
+
+    /**
+     * Enter the guard before sending a request.  Every successful call must be paired with a call to
+     * {@link #release(boolean, Throwable)}.
+     *
+     * @return {@code true} if the request is the probe which decides whether the peer is reachable again
+     * @throws XAException if the peer is unavailable or too busy to take the request
+     */
+    boolean acquire() throws XAException {
+        boolean probe = false;
+        if (failureThreshold > 0) {
+            int state = this.state.get();
+            if (state == OPEN) {
+                if (System.nanoTime() - openedAt < openNanos || ! this.state.compareAndSet(OPEN, HALF_OPEN)) {
+                    throw Log.log.peerUnavailable(XAException.XAER_RMFAIL, location);
+                }
+                probe = true;
+            } else if (state == HALF_OPEN) {
+                // the probe has not come back yet
+                throw Log.log.peerUnavailable(XAException.XAER_RMFAIL, location);
+            }
+        }
+        final Semaphore permits = this.permits;
+        if (permits != null) {
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (! acquired) {
+                if (probe) {
+                    // give up the probe
+                    state.compareAndSet(HALF_OPEN, OPEN);
+                }
+                throw Log.log.peerBusy(XAException.XAER_RMFAIL, location);
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * Leave the guard after a request is complete.  Only the probe moves the guard out of the half-open state; a
+     * request which was let in before the peer was found unreachable does not count once it has been.
+     *
+     * @param probe the value returned by {@link #acquire()} for the request
+     * @param problem the exception thrown by the request, or {@code null} if it succeeded
+     */
+    void release(final boolean probe, final Throwable problem) {
+        final Semaphore permits = this.permits;
+        if (permits != null) {
+            permits.release();
+        }
+        if (failureThreshold > 0) {
+            final boolean failed = isCommunicationFailure(problem);
+            if (probe) {
+                if (failed) {
+                    openedAt = System.nanoTime();
+                    state.set(OPEN);
+                } else {
+                    failures.set(0);
+                    state.set(CLOSED);
+                }
+            } else if (state.get() == CLOSED) {
+                if (! failed) {
+                    failures.set(0);
+                } else if (failures.incrementAndGet() >= failureThreshold) {
+                    openedAt = System.nanoTime();
+                    state.compareAndSet(CLOSED, OPEN);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine whether this guard holds nothing worth keeping: no request is in flight and no failure is counted.
+     *
+     * @return {@code true} if a fresh guard would behave the same
+     */
+    boolean isIdle() {
+        final Semaphore permits = this.permits;
+        return state.get() == CLOSED && failures.get() == 0 && (permits == null || permits.availablePermits() == maxConcurrent);
+    }
+
+    private static boolean isCommunicationFailure(final Throwable problem) {
+        // sending, connecting and timing out all fail with an I/O cause; the guard's own refusals have none
+        return problem instanceof XAException && problem.getCause() instanceof IOException;
+    }
+}
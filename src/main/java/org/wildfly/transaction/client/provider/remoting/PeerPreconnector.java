@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.Endpoint;
+import org.wildfly.transaction.client._private.Log;
+import org.xnio.XnioWorker;
+
+/**
+ * Keeps a connection and its transaction channels open to a peer, so that requests to that peer do not have to
+ * connect first.  The connection is opened in the background, and opened again whenever it closes, until the endpoint
+ * closes.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class PeerPreconnector {
+    private static final long MIN_RETRY_MILLIS = 500;
+    private static final long MAX_RETRY_MILLIS = 60_000;
+
+    private final URI location;
+    private final RemotingRemoteTransactionPeer peer;
+    private final XnioWorker worker;
+    // only accessed by the connecting task, of which at most one is scheduled at a time
+    private long retryMillis = MIN_RETRY_MILLIS;
+    private volatile boolean stopped;
+
+    PeerPreconnector(final URI location, final Endpoint endpoint, final RemotingFallbackPeerProvider fallbackProvider) {
+        this.location = location;
+        // the default SSL and authentication configuration, as used by requests without sticky configuration
+        peer = new RemotingRemoteTransactionPeer(location, null, null, endpoint, fallbackProvider);
+        worker = endpoint.getXnioWorker();
+        endpoint.addCloseHandler((e, problem) -> stopped = true);
+    }
+
+    void start() {
+        worker.execute(this::connect);
+    }
+
+    private void connect() {
+        if (stopped) {
+            return;
+        }
+        final Connection connection;
+        try {
+            connection = peer.getPeerIdentity().getConnection();
+            peer.getOperations(connection);
+        } catch (IOException e) {
+            Log.log.preconnectFailed(location, retryMillis, e);
+            backOff();
+            return;
+        } catch (RuntimeException e) {
+            // not the peer's doing, but it may yet pass; don't let it end the task quietly
+            Log.log.preconnectFailedUnexpectedly(location, retryMillis, e);
+            backOff();
+            return;
+        }
+        retryMillis = MIN_RETRY_MILLIS;
+        connection.addCloseHandler((c, problem) -> retry(0L));
+    }
+
+    private void backOff() {
+        retry(retryMillis);
+        retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis << 1);
+    }
+
+    private void retry(final long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        if (delayMillis == 0L) {
+            worker.execute(this::connect);
+        } else {
+            worker.getIoThread().executeAfter(() -> worker.execute(this::connect), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -38,7 +38,7 @@ class Protocol {
     public static final boolean UNSIGNED = false;
 
     public static final int VERSION_MIN = 0;
-    public static final int VERSION_MAX = 0;
+    public static final int VERSION_MAX = 1; // 1 = capability negotiation (see P_CAP_*)
 
     // all msgs are initiated by the client
     // msg format
@@ -58,25 +58,37 @@ class Protocol {
 
     // unused                               = 0x01
     // Roll back the transaction with the given XID
-    public static final int M_XA_ROLLBACK   = 0x02; // P_XID(gtid) [ P_SEC_CONTEXT ]
+    public static final int M_XA_ROLLBACK   = 0x02; // ( P_XID(gtid) [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_TIMEOUT ]
     // Prepare the transaction with the given XID
-    public static final int M_XA_PREPARE    = 0x03; // P_XID(gtid) [ P_SEC_CONTEXT ]
+    public static final int M_XA_PREPARE    = 0x03; // ( P_XID(gtid) [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_TIMEOUT ] [ P_RB_ONLY ]
     // Commit the transaction with the given XID
-    public static final int M_XA_COMMIT     = 0x04; // P_XID(gtid) [ P_SEC_CONTEXT ] [ P_ONE_PHASE ]
+    public static final int M_XA_COMMIT     = 0x04; // ( P_XID(gtid) [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_ONE_PHASE ] [ P_TIMEOUT ] [ P_RB_ONLY ]
     // Forget the transaction with the given XID
-    public static final int M_XA_FORGET     = 0x05; // P_XID(gtid) [ P_SEC_CONTEXT ]
+    public static final int M_XA_FORGET     = 0x05; // ( P_XID(gtid) [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_TIMEOUT ] [ P_NO_REPLY ]
     // Execute before-completion for the transaction with the given XID
-    public static final int M_XA_BEFORE     = 0x06; // P_XID(gtid) [ P_SEC_CONTEXT ]
+    public static final int M_XA_BEFORE     = 0x06; // ( P_XID(gtid) [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_TIMEOUT ] [ P_RB_ONLY ]
     // Get a list of XIDs to recover
-    public static final int M_XA_RECOVER    = 0x07; // [ P_SEC_CONTEXT ] [ P_PARENT_NAME ]
+    public static final int M_XA_RECOVER    = 0x07; // [ P_SEC_CONTEXT ] [ P_PARENT_NAME ] [ P_XA_FLAGS ]
     // Mark the XA transaction as rollback-only; used if the resource was called with TMFAIL
-    public static final int M_XA_RB_ONLY    = 0x08; // P_XID(gtid) [ P_SEC_CONTEXT ]
+    public static final int M_XA_RB_ONLY    = 0x08; // ( P_XID(gtid) [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_TIMEOUT ] [ P_NO_REPLY ]
     // Unused
     // unused                               = 0x09;
     // TXN_CONTEXT is released (even for error)
     public static final int M_UT_COMMIT     = 0x0A; // P_TXN_CONTEXT [ P_SEC_CONTEXT ]
     // TXN_CONTEXT is released (even for error)
     public static final int M_UT_ROLLBACK   = 0x0B; // P_TXN_CONTEXT [ P_SEC_CONTEXT ]
+    // Prepare each of the transactions with the given XIDs
+    public static final int M_XA_BATCH_PREPARE  = 0x0C; // ( P_XID [ P_XID_HANDLE ] | P_XID_HANDLE )... [ P_SEC_CONTEXT ]
+    // Commit each of the transactions with the given XIDs
+    public static final int M_XA_BATCH_COMMIT   = 0x0D; // ( P_XID [ P_XID_HANDLE ] | P_XID_HANDLE )... [ P_SEC_CONTEXT ] [ P_ONE_PHASE ]
+    // Roll back each of the transactions with the given XIDs
+    public static final int M_XA_BATCH_ROLLBACK = 0x0E; // ( P_XID [ P_XID_HANDLE ] | P_XID_HANDLE )... [ P_SEC_CONTEXT ]
+    // Execute before-completion and then prepare the transaction with the given XID
+    public static final int M_XA_BEFORE_PREPARE = 0x0F; // ( P_XID [ P_XID_HANDLE ] | P_XID_HANDLE ) [ P_SEC_CONTEXT ] [ P_TIMEOUT ] [ P_RB_ONLY ]
+    // Commit each of the given user transactions; each TXN_CONTEXT is released (even for error)
+    public static final int M_UT_BATCH_COMMIT   = 0x10; // P_TXN_CONTEXT... [ P_SEC_CONTEXT ]
+    // Roll back each of the given user transactions; each TXN_CONTEXT is released (even for error)
+    public static final int M_UT_BATCH_ROLLBACK = 0x11; // P_TXN_CONTEXT... [ P_SEC_CONTEXT ]
 
     // server -> client
 
@@ -89,13 +101,21 @@ class Protocol {
     public static final int M_RESP_XA_FORGET    = 0x15; // [ P_XA_ERROR | P_SEC_EXC ]
     public static final int M_RESP_XA_BEFORE    = 0x16; // [ P_XA_ERROR | P_SEC_EXC ]
 
-    public static final int M_RESP_XA_RECOVER   = 0x17; // P_XID... | P_XA_ERROR | P_SEC_EXC
+    public static final int M_RESP_XA_RECOVER   = 0x17; // P_XID... [ P_MORE ] | P_XA_ERROR | P_SEC_EXC
 
     public static final int M_RESP_XA_RB_ONLY   = 0x18; // [ P_XA_ERROR | P_SEC_EXC ]
 
     public static final int M_RESP_UT_COMMIT    = 0x1A; // [ P_UT_RB_EXC | P_UT_HME_EXC | P_UT_HRE_EXC | P_UT_SYS_EXC | P_SEC_EXC ]
     public static final int M_RESP_UT_ROLLBACK  = 0x1B; // [ P_UT_SYS_EXC | P_SEC_EXC ]
 
+    // batch responses carry one outcome per requested XID, in request order
+    public static final int M_RESP_XA_BATCH_PREPARE     = 0x1C; // ( P_XID [ P_XA_RDONLY | P_XA_ERROR | P_SEC_EXC ] )... | P_SEC_EXC
+    public static final int M_RESP_XA_BATCH_COMMIT      = 0x1D; // ( P_XID [ P_XA_ERROR | P_SEC_EXC ] )... | P_SEC_EXC
+    public static final int M_RESP_XA_BATCH_ROLLBACK    = 0x1E; // ( P_XID [ P_XA_ERROR | P_SEC_EXC ] )... | P_SEC_EXC
+    public static final int M_RESP_XA_BEFORE_PREPARE    = 0x1F; // [ P_XA_RDONLY | P_XA_ERROR | P_SEC_EXC ]
+    public static final int M_RESP_UT_BATCH_COMMIT      = 0x20; // ( P_TXN_CONTEXT [ P_UT_RB_EXC | P_UT_HME_EXC | P_UT_HRE_EXC | P_UT_SYS_EXC | P_UT_IS_EXC | P_SEC_EXC ] )... | P_SEC_EXC
+    public static final int M_RESP_UT_BATCH_ROLLBACK    = 0x21; // ( P_TXN_CONTEXT [ P_UT_SYS_EXC | P_UT_IS_EXC | P_SEC_EXC ] )... | P_SEC_EXC
+
     public static final int M_RESP_PARAM_ERROR  = 0xFE; // empty (missing required or found unknown parameter)
     public static final int M_RESP_ERROR        = 0xFF; // empty (unknown request code)
 
@@ -105,10 +125,14 @@ class Protocol {
     public static final int P_XID           = 0x01; // body = XID
     public static final int P_ONE_PHASE     = 0x02; // len=0
     public static final int P_PARENT_NAME   = 0x03; // body = utf8
-    // unused                                 0x04
-    // unused                                 0x05
-    // unused                                 0x06
+    public static final int P_XID_HANDLE    = 0x04; // body = int; with P_XID: bind handle, alone: stands for the bound XID (CAP_XID_HANDLE)
+    public static final int P_TIMEOUT       = 0x05; // body = int; milliseconds the client will wait for the response (optional)
+    public static final int P_XA_FLAGS      = 0x06; // body = int; TMSTARTRSCAN, TMNOFLAGS or TMENDRSCAN (CAP_XA_RECOVER_CURSOR)
     public static final int P_XA_RDONLY     = 0x07; // len=0
+    public static final int P_MORE          = 0x08; // len=0; more XIDs follow on the next TMNOFLAGS request (s -> c)
+    public static final int P_NO_REPLY      = 0x09; // len=0; no response is sent; a failure is reported on the next request for the XID (CAP_XA_ONE_WAY)
+    public static final int P_RB_ONLY       = 0x0A; // len=0; mark the transaction rollback-only before the operation; M_XA_BEFORE, M_XA_PREPARE, M_XA_BEFORE_PREPARE and M_XA_COMMIT only (CAP_XA_RB_ONLY_PARAM)
+    public static final int P_XID_HANDLE_FREE = 0x0B; // body = int; the handle is unbound; leads any replied XA request but M_XA_RECOVER; not bound again until answered (CAP_XID_HANDLE)
 
     // Exception types format:
     //  byte 0..3 = error code (XA and sys exceptions only)
@@ -126,9 +150,50 @@ class Protocol {
 
     public static final int P_VERSION_ERROR = 0x40; // additional capabilities must be negotiated (s -> c)
 
+    // Capabilities (M_CAPABILITY and M_RESP_CAPABILITY only); messages which need a capability are only sent once
+    // the server has acknowledged it
+
+    public static final int P_CAP_XA_BATCH          = 0x50; // len=0; M_XA_BATCH_*
+    public static final int P_CAP_XA_BEFORE_PREPARE = 0x51; // len=0; M_XA_BEFORE_PREPARE
+    public static final int P_CAP_XID_HANDLE        = 0x52; // len=0; P_XID_HANDLE
+    public static final int P_CAP_XA_RECOVER_CURSOR = 0x53; // len=0; paged M_XA_RECOVER with P_XA_FLAGS
+    public static final int P_CAP_XA_ONE_WAY        = 0x54; // len=0; M_XA_RB_ONLY and M_XA_FORGET with P_NO_REPLY
+    public static final int P_CAP_XA_RB_ONLY_PARAM  = 0x55; // len=0; P_RB_ONLY
+    public static final int P_CAP_UT_BATCH          = 0x56; // len=0; M_UT_BATCH_*
+
+    public static final int CAP_XA_BATCH            = 1 << 0;
+    public static final int CAP_XA_BEFORE_PREPARE   = 1 << 1;
+    public static final int CAP_XID_HANDLE          = 1 << 2;
+    public static final int CAP_XA_RECOVER_CURSOR   = 1 << 3;
+    public static final int CAP_XA_ONE_WAY          = 1 << 4;
+    public static final int CAP_XA_RB_ONLY_PARAM    = 1 << 5;
+    public static final int CAP_UT_BATCH            = 1 << 6;
+
+    // every capability known to this implementation, in the order they are offered
+    static final int[] CAPABILITY_PARAMS = { P_CAP_XA_BATCH, P_CAP_XA_BEFORE_PREPARE, P_CAP_XID_HANDLE, P_CAP_XA_RECOVER_CURSOR, P_CAP_XA_ONE_WAY, P_CAP_XA_RB_ONLY_PARAM, P_CAP_UT_BATCH };
+
+    // the invocation ID of requests sent with P_NO_REPLY; never allocated to an invocation
+    public static final int ONE_WAY_INV_ID = 0;
+
+    // the exclusive upper bound of XID handle values
+    public static final int MAX_XID_HANDLES = 0x10000;
+
     public static final int P_SEC_CONTEXT   = 0xF0; // uint32 security context association ID
     public static final int P_TXN_CONTEXT   = 0xF1; // uint32 transaction context association ID
 
+    public static int capabilityOf(int param) {
+        switch (param) {
+            case P_CAP_XA_BATCH: return CAP_XA_BATCH;
+            case P_CAP_XA_BEFORE_PREPARE: return CAP_XA_BEFORE_PREPARE;
+            case P_CAP_XID_HANDLE: return CAP_XID_HANDLE;
+            case P_CAP_XA_RECOVER_CURSOR: return CAP_XA_RECOVER_CURSOR;
+            case P_CAP_XA_ONE_WAY: return CAP_XA_ONE_WAY;
+            case P_CAP_XA_RB_ONLY_PARAM: return CAP_XA_RB_ONLY_PARAM;
+            case P_CAP_UT_BATCH: return CAP_UT_BATCH;
+            default: return 0;
+        }
+    }
+
     public static void writeParam(int param, OutputStream os, int val, boolean signed) throws IOException {
         writeInt8(os, param);
         final int len;
@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client.XARecoverable;
+import org.wildfly.transaction.client._private.Log;
+
+/**
+ * A server-side recovery scan which is handed out to the client a page at a time.  The underlying recovery interface
+ * is only asked for its next batch once the previous one has been consumed.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class RecoveryCursor {
+    static final int PAGE_SIZE = Math.max(1, RemotingProperties.getInt("recover-page-size", 256));
+
+    static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, RemotingProperties.getLong("recover-cursor-idle-millis", 120000L)));
+
+    private final XARecoverable recoverable;
+    private final String parentName;
+    private final long idleNanos;
+    // some transaction managers don't treat recovery scanning as a cursor, and return the same XIDs again...
+    // once a scan request yields nothing which was not in the batch before, the scan is done; only two batches are
+    // kept, so memory does not grow with the size of the backlog
+    private HashSet<SimpleXid> previous = new HashSet<>();
+    private HashSet<SimpleXid> current = new HashSet<>();
+    private Xid[] batch;
+    private int idx;
+    private boolean added;
+    private boolean ended;
+    private Xid next;
+    private volatile long lastUsed = System.nanoTime();
+
+    private RecoveryCursor(final XARecoverable recoverable, final String parentName, final long idleNanos, final Xid[] batch) {
+        this.recoverable = recoverable;
+        this.parentName = parentName;
+        this.idleNanos = idleNanos;
+        this.batch = batch;
+    }
+
+    static RecoveryCursor open(final XARecoverable recoverable, final String parentName) throws XAException {
+        return open(recoverable, parentName, IDLE_NANOS);
+    }
+
+    static RecoveryCursor open(final XARecoverable recoverable, final String parentName, final long idleNanos) throws XAException {
+        return new RecoveryCursor(recoverable, parentName, idleNanos, recoverable.recover(XAResource.TMSTARTRSCAN, parentName));
+    }
+
+    /**
+     * Get the next page of XIDs.  Once the last page has been returned, the scan is ended.
+     *
+     * @param page the array to fill
+     * @return the number of XIDs written to the array
+     * @throws XAException if the recovery interface fails, in which case the scan is ended
+     */
+    synchronized int nextPage(final Xid[] page) throws XAException {
+        lastUsed = System.nanoTime();
+        int cnt = 0;
+        Xid xid;
+        while (cnt < page.length && (xid = nextXid()) != null) {
+            page[cnt ++] = xid;
+        }
+        return cnt;
+    }
+
+    synchronized boolean hasNext() throws XAException {
+        if (next == null) {
+            next = nextXid();
+        }
+        return next != null;
+    }
+
+    private Xid nextXid() throws XAException {
+        Xid xid = next;
+        if (xid != null) {
+            next = null;
+            return xid;
+        }
+        try {
+            for (;;) {
+                final Xid[] batch = this.batch;
+                while (idx < batch.length) {
+                    xid = batch[idx ++];
+                    final SimpleXid gtid = SimpleXid.of(xid).withoutBranch();
+                    if (! previous.contains(gtid) && current.add(gtid)) {
+                        added = true;
+                        return xid;
+                    }
+                }
+                if (ended) {
+                    return null;
+                }
+                if (batch.length > 0 && added) {
+                    // get the next batch
+                    this.batch = recoverable.recover(XAResource.TMNOFLAGS, parentName);
+                } else {
+                    // ending the scan may yield some more
+                    ended = true;
+                    this.batch = recoverable.recover(XAResource.TMENDRSCAN, parentName);
+                }
+                idx = 0;
+                added = false;
+                final HashSet<SimpleXid> previous = this.previous;
+                previous.clear();
+                this.previous = current;
+                current = previous;
+            }
+        } catch (XAException e) {
+            close(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Determine whether the client has not asked for a page of this scan for longer than the idle timeout.
+     *
+     * @return the time left before the scan is idle, in nanoseconds, or 0 if it is idle already
+     */
+    long getIdleRemaining() {
+        return Math.max(0L, idleNanos - (System.nanoTime() - lastUsed));
+    }
+
+    /**
+     * End the scan if it is still in progress.
+     */
+    synchronized void close() {
+        try {
+            close(null);
+        } catch (XAException e) {
+            Log.log.recoverySuppressedException(e);
+        }
+    }
+
+    private void close(final XAException cause) throws XAException {
+        if (! ended) {
+            ended = true;
+            batch = SimpleXid.NO_XIDS;
+            idx = 0;
+            next = null;
+            previous.clear();
+            current.clear();
+            try {
+                recoverable.recover(XAResource.TMENDRSCAN, parentName);
+            } catch (XAException e) {
+                if (cause == null) throw e;
+                cause.addSuppressed(e);
+            }
+        }
+    }
+}
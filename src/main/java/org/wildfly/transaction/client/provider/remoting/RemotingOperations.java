@@ -41,7 +41,81 @@ public interface RemotingOperations {
 
     void beforeCompletion(Xid xid, ConnectionPeerIdentity peerIdentity) throws XAException;
 
+    /**
+     * Run before-completion processing and then prepare the transaction with the given XID.  The default
+     * implementation simply calls {@link #beforeCompletion(Xid, ConnectionPeerIdentity)} followed by
+     * {@link #prepare(Xid, ConnectionPeerIdentity)}.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity (must not be {@code null})
+     * @return the prepare outcome
+     * @throws XAException if either step fails
+     */
+    default int beforeCompletionAndPrepare(Xid xid, ConnectionPeerIdentity peerIdentity) throws XAException {
+        beforeCompletion(xid, peerIdentity);
+        return prepare(xid, peerIdentity);
+    }
+
+    /**
+     * Determine whether {@link #beforeCompletionAndPrepare(Xid, ConnectionPeerIdentity)} is performed as a single
+     * operation, making it worthwhile to defer before-completion processing until prepare.
+     *
+     * @return {@code true} if before-completion should be deferred, {@code false} otherwise
+     */
+    default boolean isBeforeCompletionDeferrable() {
+        return false;
+    }
+
     Xid[] recover(int flag, String parentName, ConnectionPeerIdentity peerIdentity) throws XAException;
 
     SimpleTransactionControl begin(ConnectionPeerIdentity peerIdentity) throws SystemException;
+
+    // Bounded variants.  The timeout is in seconds (0 means no limit); an operation whose response does not arrive in
+    // time fails with XAER_RMFAIL (or a SystemException).  The defaults ignore the timeout.
+
+    default void commit(Xid xid, boolean onePhase, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        commit(xid, onePhase, peerIdentity);
+    }
+
+    default void forget(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        forget(xid, peerIdentity);
+    }
+
+    default int prepare(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        return prepare(xid, peerIdentity);
+    }
+
+    default void rollback(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        rollback(xid, peerIdentity);
+    }
+
+    default void setRollbackOnly(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        setRollbackOnly(xid, peerIdentity);
+    }
+
+    default void beforeCompletion(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        beforeCompletion(xid, peerIdentity);
+    }
+
+    default int beforeCompletionAndPrepare(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        return beforeCompletionAndPrepare(xid, peerIdentity);
+    }
+
+    default SimpleTransactionControl begin(ConnectionPeerIdentity peerIdentity, int timeout) throws SystemException {
+        return begin(peerIdentity);
+    }
+
+    /**
+     * Mark the transaction as rollback-only without necessarily contacting the peer right away.  The mark may instead
+     * be carried by the next before-completion, prepare or commit request for the XID; a rollback discards it, and if
+     * none of these is sent within the given time, it is sent by itself.  The default sends it immediately.
+     *
+     * @param xid the transaction ID
+     * @param peerIdentity the peer identity
+     * @param timeout the time in seconds that the mark may be held back for (0 means it must not be held back)
+     * @throws XAException if the mark was sent immediately and failed
+     */
+    default void deferRollbackOnly(Xid xid, ConnectionPeerIdentity peerIdentity, int timeout) throws XAException {
+        setRollbackOnly(xid, peerIdentity, timeout);
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static java.security.AccessController.doPrivileged;
+
+import java.security.PrivilegedAction;
+
+/**
+ * Access to the system properties which tune the client side of the remoting transaction protocol.  All property
+ * names are relative to the {@code org.wildfly.transaction.client.remoting.} prefix.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class RemotingProperties {
+    private static final String PREFIX = "org.wildfly.transaction.client.remoting.";
+
+    private RemotingProperties() {
+    }
+
+    static int getInt(final String name, final int defVal) {
+        final Integer value = doPrivileged((PrivilegedAction<Integer>) () -> Integer.getInteger(PREFIX + name));
+        return value == null ? defVal : value.intValue();
+    }
+
+    static String getString(final String name, final String defVal) {
+        return doPrivileged((PrivilegedAction<String>) () -> System.getProperty(PREFIX + name, defVal));
+    }
+
+    static long getLong(final String name, final long defVal) {
+        final Long value = doPrivileged((PrivilegedAction<Long>) () -> Long.getLong(PREFIX + name));
+        return value == null ? defVal : value.longValue();
+    }
+}
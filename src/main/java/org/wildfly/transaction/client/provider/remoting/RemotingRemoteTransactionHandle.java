@@ -18,7 +18,14 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.transaction.HeuristicMixedException;
@@ -32,11 +39,10 @@ import org.jboss.remoting3.MessageInputStream;
 import org.jboss.remoting3.MessageOutputStream;
 import org.jboss.remoting3.util.BlockingInvocation;
 import org.jboss.remoting3.util.InvocationTracker;
-import org.jboss.remoting3.util.StreamUtils;
 import org.wildfly.common.Assert;
-import org.wildfly.common.rpc.RemoteExceptionCause;
 import org.wildfly.transaction.client._private.Log;
 import org.wildfly.transaction.client.spi.SimpleTransactionControl;
+import org.xnio.XnioExecutor;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
@@ -46,6 +52,8 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
     private final TransactionClientChannel channel;
     private final AtomicInteger statusRef = new AtomicInteger(Status.STATUS_ACTIVE);
     private final int id;
+    private final int timeout;
+    private final long startTime = System.nanoTime();
     private final SimpleIdResolver resolver = connection -> {
         Assert.checkNotNullParam("connection", connection);
         if (getConnection() != connection) {
@@ -54,9 +62,10 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
         return getId();
     };
 
-    RemotingRemoteTransactionHandle(final int id, final TransactionClientChannel channel) {
+    RemotingRemoteTransactionHandle(final int id, final TransactionClientChannel channel, final int timeout) {
         this.id = id;
         this.channel = channel;
+        this.timeout = timeout;
     }
 
     public int getId() {
@@ -90,6 +99,20 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
             }
             statusRef.set(Status.STATUS_COMMITTING);
             try {
+                final int peerIdentityId = getPeerIdentityId();
+                final CompletableFuture<Void> batched = channel.submitUserTransaction(true, id, peerIdentityId);
+                if (batched != null) {
+                    final Exception problem = awaitBatched(batched);
+                    if (problem == null) {
+                        statusRef.set(Status.STATUS_COMMITTED);
+                        return;
+                    } else if (problem instanceof RollbackException) {
+                        statusRef.set(Status.STATUS_ROLLEDBACK);
+                    } else if (problem instanceof SecurityException) {
+                        statusRef.set(oldVal);
+                    }
+                    ResponseDecoder.throwUserTransactionCommitFailure(problem);
+                }
                 final InvocationTracker invocationTracker = channel.getInvocationTracker();
                 final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
                 // write request
@@ -97,58 +120,22 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
                     os.writeShort(invocation.getIndex());
                     os.writeByte(Protocol.M_UT_COMMIT);
                     Protocol.writeParam(Protocol.P_TXN_CONTEXT, os, id, Protocol.UNSIGNED);
-                    final int peerIdentityId = channel.getConnection().getPeerIdentityId();
                     if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
                 } catch (IOException e) {
                     statusRef.set(Status.STATUS_UNKNOWN);
                     throw Log.log.failedToSend(e);
                 }
+                final XnioExecutor.Key timeoutKey = expireAfter(invocationTracker, invocation);
                 try (BlockingInvocation.Response response = invocation.getResponse()) {
                     try (MessageInputStream is = response.getInputStream()) {
-                        if (is.readUnsignedByte() != Protocol.M_RESP_UT_COMMIT) {
-                            throw Log.log.unknownResponse();
-                        }
-                        int id = is.read();
-                        if (id == -1) {
-                            statusRef.set(Status.STATUS_COMMITTED);
-                        } else {
-                            int len = StreamUtils.readPackedUnsignedInt32(is);
-                            if (id == Protocol.P_UT_HME_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final HeuristicMixedException e = Log.log.peerHeuristicMixedException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_HRE_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final HeuristicRollbackException e = Log.log.peerHeuristicRollbackException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_IS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final IllegalStateException e = Log.log.peerIllegalStateException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_RB_EXC) {
-                                statusRef.set(Status.STATUS_ROLLEDBACK);
-                                final RollbackException e = Log.log.transactionRolledBackByPeer();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_SYS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final SystemException e = Log.log.peerSystemException();
-                                e.errorCode = is.readInt();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_SEC_EXC) {
-                                statusRef.set(oldVal);
-                                final SecurityException e = Log.log.peerSecurityException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                throw Log.log.unknownResponse();
-                            }
-                        }
+                        ResponseDecoder.readUserTransactionCommit(is);
+                        statusRef.set(Status.STATUS_COMMITTED);
+                    } catch (RollbackException e) {
+                        statusRef.set(Status.STATUS_ROLLEDBACK);
+                        throw e;
+                    } catch (SecurityException e) {
+                        statusRef.set(oldVal);
+                        throw e;
                     } catch (IOException e) {
                         statusRef.set(Status.STATUS_UNKNOWN);
                         throw Log.log.responseFailed(e);
@@ -160,6 +147,8 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
                 } catch (IOException e) {
                     // failed to close the response, but we don't care too much
                     Log.log.inboundException(e);
+                } finally {
+                    timeoutKey.remove();
                 }
             } finally {
                 statusRef.compareAndSet(Status.STATUS_COMMITTING, Status.STATUS_UNKNOWN);
@@ -180,6 +169,18 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
             }
             statusRef.set(Status.STATUS_ROLLING_BACK);
             try {
+                final int peerIdentityId = getPeerIdentityId();
+                final CompletableFuture<Void> batched = channel.submitUserTransaction(false, id, peerIdentityId);
+                if (batched != null) {
+                    final Exception problem = awaitBatched(batched);
+                    if (problem == null) {
+                        statusRef.set(Status.STATUS_ROLLEDBACK);
+                        return;
+                    } else if (problem instanceof SecurityException) {
+                        statusRef.set(oldVal);
+                    }
+                    ResponseDecoder.throwUserTransactionRollbackFailure(problem);
+                }
                 final InvocationTracker invocationTracker = channel.getInvocationTracker();
                 final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
                 // write request
@@ -187,43 +188,19 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
                     os.writeShort(invocation.getIndex());
                     os.writeByte(Protocol.M_UT_ROLLBACK);
                     Protocol.writeParam(Protocol.P_TXN_CONTEXT, os, id, Protocol.UNSIGNED);
-                    final int peerIdentityId = channel.getConnection().getPeerIdentityId();
                     if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
                 } catch (IOException e) {
                     statusRef.set(Status.STATUS_UNKNOWN);
                     throw Log.log.failedToSend(e);
                 }
+                final XnioExecutor.Key timeoutKey = expireAfter(invocationTracker, invocation);
                 try (BlockingInvocation.Response response = invocation.getResponse()) {
                     try (MessageInputStream is = response.getInputStream()) {
-                        if (is.readUnsignedByte() != Protocol.M_RESP_UT_ROLLBACK) {
-                            throw Log.log.unknownResponse();
-                        }
-                        int id = is.read();
-                        if (id == -1) {
-                            statusRef.set(Status.STATUS_ROLLEDBACK);
-                        } else {
-                            int len = StreamUtils.readPackedUnsignedInt32(is);
-                            if (id == Protocol.P_UT_IS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final IllegalStateException e = Log.log.peerIllegalStateException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_SYS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final SystemException e = Log.log.peerSystemException();
-                                e.errorCode = is.readInt();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_SEC_EXC) {
-                                statusRef.set(oldVal);
-                                final SecurityException e = Log.log.peerSecurityException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                throw Log.log.unknownResponse();
-                            }
-                        }
+                        ResponseDecoder.readUserTransactionRollback(is);
+                        statusRef.set(Status.STATUS_ROLLEDBACK);
+                    } catch (SecurityException e) {
+                        statusRef.set(oldVal);
+                        throw e;
                     } catch (IOException e) {
                         statusRef.set(Status.STATUS_UNKNOWN);
                         throw Log.log.responseFailed(e);
@@ -235,6 +212,8 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
                 } catch (IOException e) {
                     // failed to close the response, but we don't care too much
                     Log.log.inboundException(e);
+                } finally {
+                    timeoutKey.remove();
                 }
             } finally {
                 statusRef.compareAndSet(Status.STATUS_ROLLING_BACK, Status.STATUS_UNKNOWN);
@@ -242,6 +221,60 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
         }
     }
 
+    private int getPeerIdentityId() throws SystemException {
+        try {
+            return channel.getConnection().getPeerIdentityId();
+        } catch (IOException e) {
+            statusRef.set(Status.STATUS_UNKNOWN);
+            throw Log.log.failedToSend(e);
+        }
+    }
+
+    /**
+     * Wait for the outcome of a request which was sent in a batch.
+     *
+     * @param future the future outcome
+     * @return the exception which the transaction failed with, or {@code null} if it succeeded
+     * @throws SystemException if the outcome is unknown
+     */
+    private Exception awaitBatched(final CompletableFuture<Void> future) throws SystemException {
+        final int waitTime = getWaitTime();
+        try {
+            future.get(waitTime, TimeUnit.SECONDS);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Log.log.operationInterrupted();
+        } catch (TimeoutException e) {
+            throw Log.log.responseFailed(Log.log.responseTimedOut(waitTime));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw Log.log.responseFailed((IOException) cause);
+            } else if (cause instanceof Exception) {
+                return (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw Log.log.unexpectedFailure(cause);
+            }
+        }
+    }
+
+    private int getWaitTime() {
+        // completion may take longer than the transaction had left to run, but never waits forever
+        final long elapsed = max(0L, System.nanoTime() - startTime);
+        return max(TransactionClientChannel.COMPLETION_TIMEOUT, timeout - (int) min(timeout, elapsed / 1_000_000_000L));
+    }
+
+    private XnioExecutor.Key expireAfter(final InvocationTracker invocationTracker, final BlockingInvocation invocation) {
+        final int waitTime = getWaitTime();
+        return channel.getConnection().getEndpoint().getXnioWorker().getIoThread().executeAfter(() -> {
+            invocationTracker.remove(invocation);
+            invocation.handleException(Log.log.responseTimedOut(waitTime));
+        }, waitTime, TimeUnit.SECONDS);
+    }
+
     public void setRollbackOnly() throws SystemException {
         final AtomicInteger statusRef = this.statusRef;
         int oldVal = statusRef.get();
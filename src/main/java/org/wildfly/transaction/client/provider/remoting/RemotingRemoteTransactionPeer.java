@@ -18,11 +18,15 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.security.AccessController.doPrivileged;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -36,6 +40,7 @@ import org.jboss.remoting3.Attachments;
 import org.jboss.remoting3.Connection;
 import org.jboss.remoting3.ConnectionPeerIdentity;
 import org.jboss.remoting3.Endpoint;
+import org.jboss.remoting3.HandleableCloseable;
 import org.jboss.remoting3.ServiceOpenException;
 import org.wildfly.common.annotation.NotNull;
 import org.wildfly.security.auth.client.AuthenticationConfiguration;
@@ -52,26 +57,110 @@ import org.wildfly.transaction.client.spi.SubordinateTransactionControl;
 class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
     private static final Attachments.Key<RemotingOperations> key = new Attachments.Key<>(RemotingOperations.class);
     private static final AuthenticationContextConfigurationClient CLIENT = doPrivileged(AuthenticationContextConfigurationClient.ACTION);
+    private static final int MAX_IDENTITIES = 16;
     private final URI location;
     private final SSLContext sslContext;
     private final AuthenticationConfiguration authenticationConfiguration;
     private final Endpoint endpoint;
     private final RemotingFallbackPeerProvider fallbackProvider;
     private final Set<Xid> rollbackOnlyXids = new ConcurrentHashMap<Xid, Boolean>().keySet(Boolean.TRUE);
+    private final Runnable closeListener;
+    private final PeerGuard guard;
+    // resolved peer identities, by the authentication context that they were resolved under; an identity is kept until
+    // its connection closes, so all of the requests for a transaction made under one context use the same connection
+    private final ConcurrentHashMap<AuthenticationContext, ConnectionPeerIdentity> identities = new ConcurrentHashMap<>();
+    // the close handler registered with each connection that this peer uses; removed when the peer is released, so
+    // that a long-lived connection does not keep a peer which is no longer cached
+    private final ConcurrentHashMap<Connection, Watch> watches = new ConcurrentHashMap<>();
+    // set once the peer is dropped from the cache; a caller may still use it for a while, without it being remembered
+    private volatile boolean released;
 
     RemotingRemoteTransactionPeer(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint, final RemotingFallbackPeerProvider fallbackProvider) {
+        this(location, sslContext, authenticationConfiguration, endpoint, fallbackProvider, null, null);
+    }
+
+    RemotingRemoteTransactionPeer(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint, final RemotingFallbackPeerProvider fallbackProvider, final Runnable closeListener, final PeerGuard guard) {
         this.location = location;
         this.sslContext = sslContext;
         this.authenticationConfiguration = authenticationConfiguration;
         this.endpoint = endpoint;
         this.fallbackProvider = fallbackProvider;
+        this.closeListener = closeListener;
+        this.guard = guard;
     }
 
     ConnectionPeerIdentity getPeerIdentity() throws IOException {
+        final AuthenticationContext context = AuthenticationContext.captureCurrent();
+        ConnectionPeerIdentity identity = identities.get(context);
+        if (identity != null) {
+            return identity;
+        }
+        identity = resolvePeerIdentity(context);
+        if (released) {
+            return identity;
+        }
+        final Connection connection = identity.getConnection();
+        if (identities.size() >= MAX_IDENTITIES) {
+            // too many distinct contexts to be worth remembering them all
+            identities.clear();
+        }
+        identities.put(context, identity);
+        // watched after the put, so a connection which is already closed still takes its identities with it
+        watch(connection);
+        if (released) {
+            identities.remove(context, identity);
+        }
+        return identity;
+    }
+
+    private void watch(final Connection connection) {
+        if (released || watches.containsKey(connection)) {
+            return;
+        }
+        final Watch watch = new Watch();
+        if (watches.putIfAbsent(connection, watch) != null) {
+            return;
+        }
+        final HandleableCloseable.Key handlerKey = connection.addCloseHandler((c, e) -> connectionClosed(c, watch));
+        watch.handlerKey = handlerKey;
+        if (released || watches.get(connection) != watch) {
+            // released meanwhile
+            watches.remove(connection, watch);
+            handlerKey.remove();
+        }
+    }
+
+    private void connectionClosed(final Connection connection, final Watch watch) {
+        if (watches.remove(connection, watch)) {
+            identities.values().removeIf(i -> i.getConnection() == connection);
+            final Runnable closeListener = this.closeListener;
+            if (closeListener != null) {
+                closeListener.run();
+            }
+        }
+    }
+
+    /**
+     * Stop watching the connections used by this peer.  Called when the peer is dropped from the cache.
+     */
+    void release() {
+        released = true;
+        for (Map.Entry<Connection, Watch> entry : watches.entrySet()) {
+            if (watches.remove(entry.getKey(), entry.getValue())) {
+                final HandleableCloseable.Key handlerKey = entry.getValue().handlerKey;
+                if (handlerKey != null) {
+                    handlerKey.remove();
+                }
+            }
+        }
+        identities.clear();
+    }
+
+    private ConnectionPeerIdentity resolvePeerIdentity(final AuthenticationContext context) throws IOException {
         SSLContext finalSslContext;
         if (sslContext == null) {
             try {
-                finalSslContext = CLIENT.getSSLContext(location, AuthenticationContext.captureCurrent(), "jta", "jboss");
+                finalSslContext = CLIENT.getSSLContext(location, context, "jta", "jboss");
             } catch (GeneralSecurityException e) {
                 throw new IOException(e);
             }
@@ -80,7 +169,7 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
         }
         AuthenticationConfiguration finalAuthenticationConfiguration;
         if (authenticationConfiguration == null) {
-            finalAuthenticationConfiguration = CLIENT.getAuthenticationConfiguration(location, AuthenticationContext.captureCurrent(), -1, "jta", "jboss");
+            finalAuthenticationConfiguration = CLIENT.getAuthenticationConfiguration(location, context, -1, "jta", "jboss");
         } else {
             finalAuthenticationConfiguration = authenticationConfiguration;
         }
@@ -98,12 +187,13 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
     @NotNull
     RemotingOperations getOperations(Connection connection) throws IOException {
         final Attachments attachments = connection.getAttachments();
+        watch(connection);
         RemotingOperations operations = attachments.getAttachment(key);
         if (operations != null) {
             return operations;
         }
         try {
-            operations = TransactionClientChannel.forConnection(connection);
+            operations = TransactionClientChannelGroup.forConnection(connection);
             final RemotingOperations appearing = attachments.attachIfAbsent(key, operations);
             if (appearing != null) {
                 return appearing;
@@ -135,18 +225,80 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
     RemotingOperations getOperationsXA(Connection connection) throws XAException {
         try {
             return getOperations(connection);
+        } catch (InterruptedIOException e) {
+            // the peer did not answer in time; it may yet
+            throw Log.log.failedToAcquireConnectionXA(e, XAException.XAER_RMFAIL);
         } catch (IOException e) {
             throw Log.log.failedToAcquireConnectionXA(e, XAException.XAER_RMERR);
         }
     }
 
+    /**
+     * Run an XA request through the peer's guard, if any.  The guard may refuse the request right away, and learns
+     * from its outcome whether the peer is reachable.
+     *
+     * @param call the request
+     * @param <T> the result type
+     * @return the result
+     * @throws XAException if the request was refused or failed
+     */
+    private <T> T guarded(final XaCall<T> call) throws XAException {
+        final PeerGuard guard = this.guard;
+        if (guard == null) {
+            return call.call();
+        }
+        final boolean probe = guard.acquire();
+        Throwable problem = null;
+        try {
+            return call.call();
+        } catch (Throwable t) {
+            problem = t;
+            throw t;
+        } finally {
+            guard.release(probe, problem);
+        }
+    }
+
+    // the timeout of requests which are made after the transaction has run out of time
+    static final int EXPIRED = -1;
+
+    interface XaCall<T> {
+        T call() throws XAException;
+    }
+
     @NotNull
     public SubordinateTransactionControl lookupXid(final Xid xid) throws XAException {
+        return lookupXid(xid, 0, 0);
+    }
+
+    @NotNull
+    public SubordinateTransactionControl lookupXid(final Xid xid, final long remainingMillis) throws XAException {
+        // requests made while the transaction is running are bounded by its remaining time, and are not sent at all
+        // once it has run out; completion may outlive it
+        final int timeout = timeoutFor(remainingMillis);
+        return lookupXid(xid, timeout, max(TransactionClientChannel.COMPLETION_TIMEOUT, timeout));
+    }
+
+    /**
+     * Get the timeout in seconds of the requests for a transaction with the given time left.  A fraction of a second
+     * is rounded up, so that only a transaction which has really run out of time counts as expired.
+     *
+     * @param remainingMillis the remaining time of the transaction in milliseconds
+     * @return the timeout in seconds, or {@link #EXPIRED}
+     */
+    static int timeoutFor(final long remainingMillis) {
+        return remainingMillis <= 0L ? EXPIRED : (int) min(Integer.MAX_VALUE, (remainingMillis + 999L) / 1000L);
+    }
+
+    private SubordinateTransactionControl lookupXid(final Xid xid, final int timeout, final int completionTimeout) {
         return new SubordinateTransactionControl() {
             public void rollback() throws XAException {
                 try {
-                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-                    getOperationsXA(peerIdentity.getConnection()).rollback(xid, peerIdentity);
+                    guarded(() -> {
+                        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                        getOperationsXA(peerIdentity.getConnection()).rollback(xid, peerIdentity, completionTimeout);
+                        return null;
+                    });
                 } finally {
                     rollbackOnlyXids.remove(xid);
                 }
@@ -154,8 +306,18 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
 
             public void end(final int flags) throws XAException {
                 if (flags == XAResource.TMFAIL && rollbackOnlyXids.add(xid)) try {
-                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-                    getOperationsXA(peerIdentity.getConnection()).setRollbackOnly(xid, peerIdentity);
+                    guarded(() -> {
+                        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                        final RemotingOperations operations = getOperationsXA(peerIdentity.getConnection());
+                        if (timeout == EXPIRED) {
+                            // nothing is left to wait for
+                            operations.setRollbackOnly(xid, peerIdentity, completionTimeout);
+                        } else {
+                            // usually another request for the transaction follows shortly, and can carry the mark
+                            operations.deferRollbackOnly(xid, peerIdentity, timeout);
+                        }
+                        return null;
+                    });
                 } catch (Throwable t) {
                     rollbackOnlyXids.remove(xid);
                     throw t;
@@ -163,23 +325,73 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
             }
 
             public void beforeCompletion() throws XAException {
-                final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-                getOperationsXA(peerIdentity.getConnection()).beforeCompletion(xid, peerIdentity);
+                if (timeout == EXPIRED) {
+                    // the caller rolls back in response
+                    throw Log.log.transactionTimedOut(XAException.XA_RBTIMEOUT);
+                }
+                guarded(() -> {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    getOperationsXA(peerIdentity.getConnection()).beforeCompletion(xid, peerIdentity, timeout);
+                    return null;
+                });
             }
 
             public int prepare() throws XAException {
+                if (timeout == EXPIRED) {
+                    throw rolledBackOnExpiry();
+                }
                 try {
-                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-                    return getOperationsXA(peerIdentity.getConnection()).prepare(xid, peerIdentity);
+                    return guarded(() -> {
+                        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                        return getOperationsXA(peerIdentity.getConnection()).prepare(xid, peerIdentity, timeout);
+                    });
                 } finally {
                     rollbackOnlyXids.remove(xid);
                 }
             }
 
-            public void forget() throws XAException {
+            public int beforeCompletionAndPrepare() throws XAException {
+                if (timeout == EXPIRED) {
+                    throw rolledBackOnExpiry();
+                }
+                try {
+                    return guarded(() -> {
+                        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                        return getOperationsXA(peerIdentity.getConnection()).beforeCompletionAndPrepare(xid, peerIdentity, timeout);
+                    });
+                } finally {
+                    rollbackOnlyXids.remove(xid);
+                }
+            }
+
+            private XAException rolledBackOnExpiry() {
+                final XAException e = Log.log.transactionTimedOut(XAException.XA_RBTIMEOUT);
+                // the outcome promises that the branch is rolled back
+                try {
+                    rollback();
+                } catch (XAException e1) {
+                    e.addSuppressed(e1);
+                }
+                return e;
+            }
+
+            public boolean isBeforeCompletionDeferrable() {
                 try {
                     final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-                    getOperationsXA(peerIdentity.getConnection()).forget(xid, peerIdentity);
+                    return getOperationsXA(peerIdentity.getConnection()).isBeforeCompletionDeferrable();
+                } catch (XAException e) {
+                    // the subsequent operation will report the problem
+                    return false;
+                }
+            }
+
+            public void forget() throws XAException {
+                try {
+                    guarded(() -> {
+                        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                        getOperationsXA(peerIdentity.getConnection()).forget(xid, peerIdentity, completionTimeout);
+                        return null;
+                    });
                 } finally {
                     rollbackOnlyXids.remove(xid);
                 }
@@ -187,8 +399,11 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
 
             public void commit(final boolean onePhase) throws XAException {
                 try {
-                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-                    getOperationsXA(peerIdentity.getConnection()).commit(xid, onePhase, peerIdentity);
+                    guarded(() -> {
+                        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                        getOperationsXA(peerIdentity.getConnection()).commit(xid, onePhase, peerIdentity, completionTimeout);
+                        return null;
+                    });
                 } finally {
                     rollbackOnlyXids.remove(xid);
                 }
@@ -198,8 +413,10 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
 
     @NotNull
     public Xid[] recover(final int flag, final String parentName) throws XAException {
-        final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
-        return getOperationsXA(peerIdentity.getConnection()).recover(flag, parentName, peerIdentity);
+        return guarded(() -> {
+            final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+            return getOperationsXA(peerIdentity.getConnection()).recover(flag, parentName, peerIdentity);
+        });
     }
 
     @NotNull
@@ -207,9 +424,13 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
         // this one is bound to the connection
         try {
             final ConnectionPeerIdentity peerIdentity = getPeerIdentity();
-            return getOperations(peerIdentity.getConnection()).begin(peerIdentity);
+            return getOperations(peerIdentity.getConnection()).begin(peerIdentity, timeout);
         } catch (IOException e) {
             throw Log.log.failedToAcquireConnection(e);
         }
     }
+
+    static final class Watch {
+        volatile HandleableCloseable.Key handlerKey;
+    }
 }
@@ -19,6 +19,7 @@
 package org.wildfly.transaction.client.provider.remoting;
 
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Iterator;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
@@ -28,7 +29,9 @@ import javax.transaction.SystemException;
 
 import org.jboss.remoting3.Endpoint;
 import org.kohsuke.MetaInfServices;
+import org.wildfly.common.Assert;
 import org.wildfly.security.auth.client.AuthenticationConfiguration;
+import org.wildfly.transaction.client._private.Log;
 import org.wildfly.transaction.client.spi.RemoteTransactionPeer;
 import org.wildfly.transaction.client.spi.RemoteTransactionProvider;
 
@@ -40,6 +43,7 @@ import org.wildfly.transaction.client.spi.RemoteTransactionProvider;
 @MetaInfServices
 public final class RemotingRemoteTransactionProvider implements RemoteTransactionProvider {
     private final RemotingFallbackPeerProvider fallbackProvider;
+    private final PeerCache peerCache;
 
     /**
      * Construct a new instance.
@@ -56,13 +60,84 @@ public final class RemotingRemoteTransactionProvider implements RemoteTransactio
             break;
         } catch (ServiceConfigurationError e) {}
         this.fallbackProvider = fallbackProvider;
+        peerCache = new PeerCache(fallbackProvider);
+        // comma-separated peer URIs to connect to right away
+        final String preconnect = RemotingProperties.getString("preconnect", "");
+        for (String location : preconnect.split(",")) {
+            location = location.trim();
+            if (! location.isEmpty()) try {
+                preconnect(new URI(location));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                Log.log.invalidPreconnectLocation(location, e);
+            }
+        }
+    }
+
+    /**
+     * Start connecting to the given peer in the background, using the current endpoint and the default SSL and
+     * authentication configuration, and keep the connection and its transaction channels open from then on.  Requests
+     * to that peer will then find the connection ready instead of opening it.  If the connection closes, it is
+     * opened again.
+     *
+     * @param location the peer location (must not be {@code null})
+     * @throws IllegalArgumentException if the location's scheme is not supported by the current endpoint
+     */
+    public void preconnect(final URI location) {
+        Assert.checkNotNullParam("location", location);
+        final Endpoint endpoint = Endpoint.getCurrent();
+        if (! endpoint.isValidUriScheme(location.getScheme())) {
+            throw Log.log.unknownProvider(location.getScheme());
+        }
+        new PeerPreconnector(location, endpoint, fallbackProvider).start();
     }
 
     public boolean supportsScheme(final String scheme) {
         return Endpoint.getCurrent().isValidUriScheme(scheme);
     }
 
+    public Object getSchemeSupportKey() {
+        // the schemes are those of the current endpoint
+        return Endpoint.getCurrent();
+    }
+
     public RemoteTransactionPeer getPeerHandle(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration) throws SystemException {
-        return new RemotingRemoteTransactionPeer(location, sslContext, authenticationConfiguration, Endpoint.getCurrent(), fallbackProvider);
+        return peerCache.get(location, sslContext, authenticationConfiguration, Endpoint.getCurrent());
+    }
+
+    /**
+     * Get the number of peer handle requests which were satisfied from the peer cache.
+     *
+     * @return the number of peer cache hits
+     */
+    public long getPeerCacheHitCount() {
+        return peerCache.getHitCount();
+    }
+
+    /**
+     * Get the number of peer handle requests which created a new peer handle.
+     *
+     * @return the number of peer cache misses
+     */
+    public long getPeerCacheMissCount() {
+        return peerCache.getMissCount();
+    }
+
+    /**
+     * Get the number of peer handles which were dropped from the peer cache, because they were idle, the cache was
+     * full, or their connection closed.
+     *
+     * @return the number of peer cache evictions
+     */
+    public long getPeerCacheEvictionCount() {
+        return peerCache.getEvictionCount();
+    }
+
+    /**
+     * Get the number of peer handles currently cached.
+     *
+     * @return the peer cache size
+     */
+    public int getPeerCacheSize() {
+        return peerCache.getSize();
     }
 }
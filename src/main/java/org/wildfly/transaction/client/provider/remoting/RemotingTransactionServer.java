@@ -21,6 +21,7 @@ package org.wildfly.transaction.client.provider.remoting;
 import static org.wildfly.transaction.client._private.Log.log;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
@@ -50,24 +51,30 @@ public final class RemotingTransactionServer {
     @NotNull
     public LocalTransaction requireTransaction(int id) throws SystemException {
         final LocalTxn txn = txns.get(id);
-        if (txn == null) {
+        final LocalTransaction transaction = txn == null ? null : txn.getTransaction();
+        if (transaction == null) {
             throw log.noTransactionForId(id);
         }
-        return txn.getTransaction();
+        return transaction;
     }
 
     @NotNull
     public LocalTransaction getOrBeginTransaction(int id, int timeout) throws SystemException {
         final LocalTxn txn = txns.get(id);
         if (txn != null) {
-            return txn.getTransaction();
+            return existingTransaction(txn);
         }
         boolean ok = false;
         LocalTransaction transaction = transactionService.getTransactionContext().beginTransaction(timeout, true);
         try {
-            final LocalTxn appearing = txns.putIfAbsent(new LocalTxn(id, transaction));
+            final LocalTxn created = new LocalTxn(id, transaction);
+            final LocalTxn appearing = txns.putIfAbsent(created);
             if (appearing != null) {
-                return appearing.getTransaction();
+                return existingTransaction(appearing);
+            }
+            final IdleTransactionReaper reaper = transactionService.getReaper();
+            if (reaper != null) {
+                reaper.track(this, created, timeout == 0 ? transaction.getTransactionTimeout() : timeout);
             }
             ok = true;
             return transaction;
@@ -78,19 +85,61 @@ public final class RemotingTransactionServer {
         }
     }
 
+    private static LocalTransaction existingTransaction(final LocalTxn txn) throws SystemException {
+        final LocalTransaction transaction = txn.getTransaction();
+        if (transaction == null) {
+            // reaped; the ID must not silently stand for a new transaction
+            throw log.noTransactionForId(txn.getId());
+        }
+        return transaction;
+    }
+
     public LocalTransaction getTransactionIfExists(int id) {
         final LocalTxn txn = txns.get(id);
         return txn == null ? null : txn.getTransaction();
     }
 
     public LocalTransaction removeTransaction(int id) {
-        LocalTxn txn = txns.removeKey(id);
+        LocalTxn txn = takeTxn(id);
         return txn == null ? null : txn.getTransaction();
     }
 
+    /**
+     * Remove a transaction entry and claim it for completion.  The entry may be the marker of a reaped transaction,
+     * in which case {@link LocalTxn#isReaped()} is {@code true}.
+     *
+     * @param id the transaction ID
+     * @return the removed entry, or {@code null} if there was none
+     */
+    LocalTxn takeTxn(int id) {
+        final LocalTxn txn = txns.removeKey(id);
+        if (txn != null) {
+            untrack(txn);
+            txn.take();
+        }
+        return txn;
+    }
+
+    private void untrack(final LocalTxn txn) {
+        final IdleTransactionReaper reaper = transactionService.getReaper();
+        if (reaper != null) {
+            reaper.untrack(txn);
+        }
+    }
+
     void handleClosed(Connection connection, IOException ignored) {
+        // take the transactions out right away; rolling them back can take a while
+        final ArrayList<LocalTransaction> orphans = new ArrayList<>();
         for (LocalTxn txn : txns) {
-            safeRollback(txn.getTransaction());
+            if (txns.remove(txn)) {
+                untrack(txn);
+                if (txn.take()) {
+                    orphans.add(txn.getTransaction());
+                }
+            }
+        }
+        if (! orphans.isEmpty()) {
+            transactionService.rollbackOrphans(orphans);
         }
     }
 
@@ -124,20 +173,65 @@ public final class RemotingTransactionServer {
     // tracked transactions
 
     static final class LocalTxn {
-        private final LocalTransaction transaction;
         private final int id;
+        // cleared when reaped; protected by {@code this}
+        private LocalTransaction transaction;
+        private boolean taken;
+        private boolean reaped;
+        // protected by the reaper
+        IdleTransactionReaper.Entry reaperEntry;
 
         LocalTxn(final int id, final LocalTransaction transaction) {
             this.id = id;
             this.transaction = transaction;
         }
 
-        LocalTransaction getTransaction() {
+        synchronized LocalTransaction getTransaction() {
             return transaction;
         }
 
         int getId() {
             return id;
         }
+
+        /**
+         * Claim this transaction for completion on behalf of the client, so that the reaper leaves it alone.
+         *
+         * @return {@code true} if it was claimed, or {@code false} if it was reaped first
+         */
+        synchronized boolean take() {
+            if (reaped) {
+                return false;
+            }
+            taken = true;
+            return true;
+        }
+
+        /**
+         * Claim this transaction for the reaper.  The entry stays behind as a marker of the rollback, without its
+         * transaction.
+         *
+         * @return the transaction to roll back, or {@code null} if it was already claimed
+         */
+        synchronized LocalTransaction reap() {
+            if (taken || reaped) {
+                return null;
+            }
+            reaped = true;
+            try {
+                return transaction;
+            } finally {
+                transaction = null;
+            }
+        }
+
+        /**
+         * Determine whether this transaction was rolled back by the reaper.
+         *
+         * @return {@code true} if the transaction was reaped
+         */
+        synchronized boolean isReaped() {
+            return reaped;
+        }
     }
 }
@@ -18,6 +18,15 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.SystemException;
+
 import org.jboss.remoting3.Attachments;
 import org.jboss.remoting3.Channel;
 import org.jboss.remoting3.Connection;
@@ -25,6 +34,8 @@ import org.jboss.remoting3.Endpoint;
 import org.jboss.remoting3.OpenListener;
 import org.jboss.remoting3.Registration;
 import org.jboss.remoting3.ServiceRegistrationException;
+import org.wildfly.common.Assert;
+import org.wildfly.transaction.client.LocalTransaction;
 import org.wildfly.transaction.client.LocalTransactionContext;
 import org.wildfly.transaction.client._private.Log;
 import org.xnio.OptionMap;
@@ -37,11 +48,22 @@ import org.xnio.OptionMap;
 public final class RemotingTransactionService {
     private final Endpoint endpoint;
     private final LocalTransactionContext transactionContext;
+    private final StripedExecutor requestExecutor;
+    private final Executor rollbackExecutor;
+    private final int rollbackConcurrency;
+    private final IdleTransactionReaper reaper;
+    private final LongAdder pendingOrphanRollbacks = new LongAdder();
+    private final LongAdder orphanRollbacks = new LongAdder();
+    private final LongAdder failedOrphanRollbacks = new LongAdder();
     private static final Attachments.Key<RemotingTransactionServer> KEY = new Attachments.Key<>(RemotingTransactionServer.class);
 
-    RemotingTransactionService(final Endpoint endpoint, final LocalTransactionContext transactionContext) {
+    RemotingTransactionService(final Endpoint endpoint, final LocalTransactionContext transactionContext, final StripedExecutor requestExecutor, final Executor rollbackExecutor, final int rollbackConcurrency) {
         this.endpoint = endpoint;
         this.transactionContext = transactionContext;
+        this.requestExecutor = requestExecutor;
+        this.rollbackExecutor = rollbackExecutor;
+        this.rollbackConcurrency = rollbackConcurrency;
+        reaper = IdleTransactionReaper.isEnabled() ? new IdleTransactionReaper(this, endpoint.getXnioWorker()) : null;
     }
 
     public Registration register() throws ServiceRegistrationException {
@@ -81,13 +103,136 @@ public final class RemotingTransactionService {
         return transactionContext;
     }
 
+    /**
+     * Get the number of inbound requests which are waiting for the request executor.
+     *
+     * @return the number of queued requests (always 0 if no executor was configured)
+     */
+    public long getQueuedRequestCount() {
+        final StripedExecutor requestExecutor = this.requestExecutor;
+        return requestExecutor == null ? 0 : requestExecutor.getQueueDepth();
+    }
+
+    /**
+     * Get the number of inbound requests which have been run by the request executor.
+     *
+     * @return the number of dispatched requests (always 0 if no executor was configured)
+     */
+    public long getDispatchedRequestCount() {
+        final StripedExecutor requestExecutor = this.requestExecutor;
+        return requestExecutor == null ? 0 : requestExecutor.getDispatchedCount();
+    }
+
+    /**
+     * Get the total time that dispatched requests have spent waiting for the request executor.
+     *
+     * @param unit the time unit to return (must not be {@code null})
+     * @return the total queued time (always 0 if no executor was configured)
+     */
+    public long getTotalRequestQueueTime(TimeUnit unit) {
+        Assert.checkNotNullParam("unit", unit);
+        final StripedExecutor requestExecutor = this.requestExecutor;
+        return requestExecutor == null ? 0 : unit.convert(requestExecutor.getTotalQueuedNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the number of transactions left behind by closed connections which are still waiting to be rolled back.
+     *
+     * @return the number of pending orphan rollbacks
+     */
+    public long getPendingOrphanRollbackCount() {
+        return pendingOrphanRollbacks.sum();
+    }
+
+    /**
+     * Get the number of transactions left behind by closed connections which have been rolled back.
+     *
+     * @return the number of completed orphan rollbacks
+     */
+    public long getOrphanRollbackCount() {
+        return orphanRollbacks.sum();
+    }
+
+    /**
+     * Get the number of transactions left behind by closed connections which could not be rolled back.
+     *
+     * @return the number of failed orphan rollbacks
+     */
+    public long getFailedOrphanRollbackCount() {
+        return failedOrphanRollbacks.sum();
+    }
+
+    /**
+     * Get the number of user transactions which were evicted because their client did not complete them in time.
+     * Those which were still open are also counted as orphan rollbacks.
+     *
+     * @return the number of reaped transactions (always 0 if reaping is disabled)
+     */
+    public long getReapedTransactionCount() {
+        final IdleTransactionReaper reaper = this.reaper;
+        return reaper == null ? 0 : reaper.getReapedCount();
+    }
+
+    IdleTransactionReaper getReaper() {
+        return reaper;
+    }
+
+    StripedExecutor getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    /**
+     * Roll back the transactions of a closed connection, several at a time, away from the calling thread.
+     *
+     * @param orphans the transactions to roll back
+     */
+    void rollbackOrphans(final List<LocalTransaction> orphans) {
+        final int size = orphans.size();
+        pendingOrphanRollbacks.add(size);
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable task = () -> {
+            int idx;
+            while ((idx = next.getAndIncrement()) < size) {
+                rollbackOrphan(orphans.get(idx));
+            }
+        };
+        final int tasks = Math.min(rollbackConcurrency, size);
+        for (int i = 0; i < tasks; i ++) {
+            try {
+                rollbackExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // no thread to be had; roll back whatever is left on the caller's thread
+                task.run();
+                return;
+            }
+        }
+    }
+
+    private void rollbackOrphan(final LocalTransaction transaction) {
+        try {
+            transaction.rollback();
+            orphanRollbacks.increment();
+        } catch (SystemException | RuntimeException e) {
+            failedOrphanRollbacks.increment();
+            Log.log.trace("Got exception during rollback-on-disconnect", e);
+        } finally {
+            pendingOrphanRollbacks.decrement();
+        }
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
     public static final class Builder {
+        private static final int DEFAULT_STRIPE_COUNT = 64;
+        private static final int DEFAULT_ROLLBACK_CONCURRENCY = 8;
+
         private Endpoint endpoint;
         private LocalTransactionContext transactionContext;
+        private Executor executor;
+        private int stripeCount = DEFAULT_STRIPE_COUNT;
+        private int rollbackConcurrency = DEFAULT_ROLLBACK_CONCURRENCY;
 
         Builder() {
         }
@@ -102,12 +247,54 @@ public final class RemotingTransactionService {
             return this;
         }
 
+        /**
+         * Set the executor which runs inbound requests.  Requests for the same transaction are still run one at a
+         * time, in the order in which they were received.  If no executor is set, requests are run on the thread
+         * which receives them.
+         *
+         * @param executor the executor, or {@code null} to run requests on the receiving thread
+         * @return this builder
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Set the number of serial request queues used with the {@linkplain #setExecutor(Executor) executor}, which
+         * bounds the number of transactions whose requests can run in parallel.  The value is rounded up to a power of
+         * two.
+         *
+         * @param stripeCount the number of request queues (must be greater than 0)
+         * @return this builder
+         */
+        public Builder setStripeCount(final int stripeCount) {
+            Assert.checkMinimumParameter("stripeCount", 1, stripeCount);
+            this.stripeCount = stripeCount;
+            return this;
+        }
+
+        /**
+         * Set the number of transactions which may be rolled back at once when a connection closes with transactions
+         * still open.  The rollbacks run on the {@linkplain #setExecutor(Executor) executor}, or on the endpoint's
+         * worker if no executor is set.
+         *
+         * @param rollbackConcurrency the number of parallel rollbacks (must be greater than 0)
+         * @return this builder
+         */
+        public Builder setRollbackConcurrency(final int rollbackConcurrency) {
+            Assert.checkMinimumParameter("rollbackConcurrency", 1, rollbackConcurrency);
+            this.rollbackConcurrency = rollbackConcurrency;
+            return this;
+        }
+
         public RemotingTransactionService build() {
             Endpoint endpoint = this.endpoint;
             if (endpoint == null) endpoint = Endpoint.getCurrent();
             LocalTransactionContext transactionContext = this.transactionContext;
             if (transactionContext == null) transactionContext = LocalTransactionContext.getCurrent();
-            return new RemotingTransactionService(endpoint, transactionContext);
+            final Executor executor = this.executor;
+            return new RemotingTransactionService(endpoint, transactionContext, executor == null ? null : new StripedExecutor(executor, stripeCount), executor == null ? endpoint.getXnioWorker() : executor, rollbackConcurrency);
         }
     }
 }
@@ -0,0 +1,255 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.IOException;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.jboss.remoting3.MessageInputStream;
+import org.jboss.remoting3.util.StreamUtils;
+import org.wildfly.common.rpc.RemoteExceptionCause;
+import org.wildfly.transaction.client._private.Log;
+
+/**
+ * The decoder of the simple responses, whose body is empty on success and holds a single exception parameter on
+ * failure.  There is one decoder per response message ID; a successful response is recognized with two reads and
+ * no allocation, and exceptions are only constructed once an exception parameter is actually seen.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class ResponseDecoder<T> implements TransactionClientChannel.XaResponseDecoder<T> {
+    private static final Integer XA_OK = Integer.valueOf(XAResource.XA_OK);
+    private static final Integer XA_RDONLY = Integer.valueOf(XAResource.XA_RDONLY);
+
+    static final ResponseDecoder<Void> ROLLBACK = new ResponseDecoder<>(Protocol.M_RESP_XA_ROLLBACK, null, null);
+    static final ResponseDecoder<Void> RB_ONLY = new ResponseDecoder<>(Protocol.M_RESP_XA_RB_ONLY, null, null);
+    static final ResponseDecoder<Void> BEFORE = new ResponseDecoder<>(Protocol.M_RESP_XA_BEFORE, null, null);
+    static final ResponseDecoder<Integer> PREPARE = new ResponseDecoder<>(Protocol.M_RESP_XA_PREPARE, XA_OK, XA_RDONLY);
+    static final ResponseDecoder<Integer> BEFORE_PREPARE = new ResponseDecoder<>(Protocol.M_RESP_XA_BEFORE_PREPARE, XA_OK, XA_RDONLY);
+    static final ResponseDecoder<Void> FORGET = new ResponseDecoder<>(Protocol.M_RESP_XA_FORGET, null, null);
+    static final ResponseDecoder<Void> COMMIT = new ResponseDecoder<>(Protocol.M_RESP_XA_COMMIT, null, null);
+
+    // decoders which report the outcome as an XA result code, by response message ID
+    private static final ResponseDecoder<?>[] OUTCOMES = new ResponseDecoder<?>[256];
+
+    static {
+        register(PREPARE);
+        register(BEFORE_PREPARE);
+        register(new ResponseDecoder<>(Protocol.M_RESP_XA_ROLLBACK, XA_OK, null));
+        register(new ResponseDecoder<>(Protocol.M_RESP_XA_COMMIT, XA_OK, null));
+    }
+
+    private final int msgId;
+    private final T success;
+    private final T readOnly;
+
+    private ResponseDecoder(final int msgId, final T success, final T readOnly) {
+        this.msgId = msgId;
+        this.success = success;
+        this.readOnly = readOnly;
+    }
+
+    private static void register(final ResponseDecoder<Integer> decoder) {
+        OUTCOMES[decoder.msgId] = decoder;
+    }
+
+    /**
+     * Get the decoder which reports the outcome of the given response as an XA result code.
+     *
+     * @param msgId the response message ID
+     * @return the decoder
+     */
+    @SuppressWarnings("unchecked")
+    static ResponseDecoder<Integer> outcomeOf(final int msgId) {
+        final ResponseDecoder<Integer> decoder = (ResponseDecoder<Integer>) OUTCOMES[msgId];
+        if (decoder == null) {
+            throw new IllegalArgumentException("No decoder for response " + msgId);
+        }
+        return decoder;
+    }
+
+    public T decode(final MessageInputStream is) throws XAException, IOException {
+        final int msgId = is.readUnsignedByte();
+        final int id = is.read();
+        if (msgId == this.msgId && id == -1) {
+            return success;
+        }
+        if (msgId != this.msgId) {
+            throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
+        }
+        if (id == Protocol.P_XA_RDONLY && readOnly != null) {
+            return readOnly;
+        }
+        throw readXaFailure(is, id);
+    }
+
+    /**
+     * Read the exception parameter of an XA response.  A security exception is thrown rather than returned.
+     *
+     * @param is the response stream, positioned after the parameter ID
+     * @param id the parameter ID
+     * @return the exception to throw
+     * @throws IOException if the response could not be read
+     */
+    static XAException readXaFailure(final MessageInputStream is, int id) throws IOException {
+        if (id == Protocol.P_XA_ERROR) {
+            StreamUtils.readPackedSignedInt32(is);
+            final XAException xa = Log.log.peerXaException(is.readInt());
+            xa.initCause(RemoteExceptionCause.readFromStream(is));
+            if ((id = is.read()) != -1) {
+                XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+                ex.addSuppressed(xa);
+                return ex;
+            }
+            return xa;
+        } else if (id == Protocol.P_SEC_EXC) {
+            StreamUtils.readPackedSignedInt32(is);
+            final SecurityException sx = Log.log.peerSecurityException();
+            sx.initCause(RemoteExceptionCause.readFromStream(is));
+            if ((id = is.read()) != -1) {
+                XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+                ex.addSuppressed(sx);
+                return ex;
+            }
+            throw sx;
+        } else {
+            return Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+        }
+    }
+
+    /**
+     * Read the response to a user transaction commit, throwing the exception that it carries, if any.
+     *
+     * @param is the response stream
+     * @throws IOException if the response could not be read
+     */
+    static void readUserTransactionCommit(final MessageInputStream is) throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException, IOException {
+        final int msgId = is.readUnsignedByte();
+        final int id = is.read();
+        if (msgId == Protocol.M_RESP_UT_COMMIT && id == -1) {
+            return;
+        }
+        if (msgId != Protocol.M_RESP_UT_COMMIT) {
+            throw Log.log.unknownResponse();
+        }
+        throwUserTransactionCommitFailure(readUserTransactionFailure(is, id));
+    }
+
+    /**
+     * Read the response to a user transaction rollback, throwing the exception that it carries, if any.
+     *
+     * @param is the response stream
+     * @throws IOException if the response could not be read
+     */
+    static void readUserTransactionRollback(final MessageInputStream is) throws SystemException, IOException {
+        final int msgId = is.readUnsignedByte();
+        final int id = is.read();
+        if (msgId == Protocol.M_RESP_UT_ROLLBACK && id == -1) {
+            return;
+        }
+        if (msgId != Protocol.M_RESP_UT_ROLLBACK) {
+            throw Log.log.unknownResponse();
+        }
+        throwUserTransactionRollbackFailure(readUserTransactionFailure(is, id));
+    }
+
+    /**
+     * Read the exception parameter of a user transaction response.
+     *
+     * @param is the response stream, positioned after the parameter ID
+     * @param id the parameter ID
+     * @return the exception that the parameter carries
+     * @throws IOException if the response could not be read
+     */
+    static Exception readUserTransactionFailure(final MessageInputStream is, final int id) throws IOException {
+        StreamUtils.readPackedUnsignedInt32(is);
+        final Exception e;
+        switch (id) {
+            case Protocol.P_UT_HME_EXC: {
+                e = Log.log.peerHeuristicMixedException();
+                break;
+            }
+            case Protocol.P_UT_HRE_EXC: {
+                e = Log.log.peerHeuristicRollbackException();
+                break;
+            }
+            case Protocol.P_UT_RB_EXC: {
+                e = Log.log.transactionRolledBackByPeer();
+                break;
+            }
+            case Protocol.P_UT_IS_EXC: {
+                e = Log.log.peerIllegalStateException();
+                break;
+            }
+            case Protocol.P_UT_SYS_EXC: {
+                final SystemException sx = Log.log.peerSystemException();
+                sx.errorCode = is.readInt();
+                e = sx;
+                break;
+            }
+            case Protocol.P_SEC_EXC: {
+                e = Log.log.peerSecurityException();
+                break;
+            }
+            default: {
+                return Log.log.unknownResponse();
+            }
+        }
+        e.initCause(RemoteExceptionCause.readFromStream(is));
+        return e;
+    }
+
+    /**
+     * Throw the given failure of a user transaction commit.
+     *
+     * @param e the failure, as read by {@link #readUserTransactionFailure(MessageInputStream, int)}
+     */
+    static void throwUserTransactionCommitFailure(final Exception e) throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
+        if (e instanceof RollbackException) {
+            throw (RollbackException) e;
+        } else if (e instanceof HeuristicMixedException) {
+            throw (HeuristicMixedException) e;
+        } else if (e instanceof HeuristicRollbackException) {
+            throw (HeuristicRollbackException) e;
+        }
+        throwUserTransactionRollbackFailure(e);
+    }
+
+    /**
+     * Throw the given failure of a user transaction rollback.
+     *
+     * @param e the failure, as read by {@link #readUserTransactionFailure(MessageInputStream, int)}
+     */
+    static void throwUserTransactionRollbackFailure(final Exception e) throws SystemException {
+        if (e instanceof SystemException) {
+            throw (SystemException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else {
+            // not a possible outcome of a rollback
+            throw Log.log.unknownResponse();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.wildfly.transaction.client._private.Log;
+
+/**
+ * An executor which runs tasks on a delegate executor, keeping the tasks which share a key in submission order.  Each
+ * key maps to one of a fixed number of serial queues (stripes); tasks of different stripes run in parallel.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class StripedExecutor {
+    // how many tasks one stripe runs before yielding its thread to the other stripes
+    private static final int MAX_RUN = 16;
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder queuedNanos = new LongAdder();
+
+    StripedExecutor(final Executor executor, final int stripeCount) {
+        this.executor = executor;
+        // round up to a power of two
+        final Stripe[] stripes = new Stripe[Integer.highestOneBit(Math.max(1, stripeCount) * 2 - 1)];
+        for (int i = 0; i < stripes.length; i ++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripes = stripes;
+    }
+
+    void execute(final int key, final Runnable task) {
+        // spread the key bits, as with hash maps
+        final int hash = key ^ key >>> 16;
+        stripes[hash & stripes.length - 1].add(task);
+    }
+
+    long getQueueDepth() {
+        return queued.sum();
+    }
+
+    long getDispatchedCount() {
+        return dispatched.sum();
+    }
+
+    long getTotalQueuedNanos() {
+        return queuedNanos.sum();
+    }
+
+    final class Stripe implements Runnable {
+        // protected by {@code this}
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        Stripe() {
+        }
+
+        void add(final Runnable runnable) {
+            final Task task = new Task(runnable, System.nanoTime());
+            queued.increment();
+            synchronized (this) {
+                tasks.add(task);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            submit();
+        }
+
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // no thread to be had; fall back to running on the caller's thread
+                run();
+            }
+        }
+
+        public void run() {
+            for (int i = 0; i < MAX_RUN; i ++) {
+                final Task task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                queued.decrement();
+                dispatched.increment();
+                queuedNanos.add(Math.max(0L, System.nanoTime() - task.queuedAt));
+                try {
+                    task.runnable.run();
+                } catch (Throwable t) {
+                    // keep the stripe going
+                    Log.log.inboundException(t);
+                }
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    running = false;
+                    return;
+                }
+            }
+            submit();
+        }
+    }
+
+    static final class Task {
+        private final Runnable runnable;
+        private final long queuedAt;
+
+        Task(final Runnable runnable, final long queuedAt) {
+            this.runnable = runnable;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -22,7 +22,15 @@ import static org.xnio.IoUtils.safeClose;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.transaction.SystemException;
 import javax.transaction.xa.XAException;
@@ -30,6 +38,7 @@ import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
 import org.jboss.remoting3.Channel;
+import org.jboss.remoting3.ChannelClosedException;
 import org.jboss.remoting3.ClientServiceHandle;
 import org.jboss.remoting3.Connection;
 import org.jboss.remoting3.ConnectionPeerIdentity;
@@ -37,466 +46,555 @@ import org.jboss.remoting3.MessageInputStream;
 import org.jboss.remoting3.MessageOutputStream;
 import org.jboss.remoting3._private.IntIndexHashMap;
 import org.jboss.remoting3._private.IntIndexMap;
-import org.jboss.remoting3.util.BlockingInvocation;
+import org.jboss.remoting3.util.Invocation;
 import org.jboss.remoting3.util.InvocationTracker;
 import org.jboss.remoting3.util.StreamUtils;
 import org.wildfly.common.annotation.NotNull;
-import org.wildfly.common.rpc.RemoteExceptionCause;
 import org.wildfly.transaction.client.SimpleXid;
 import org.wildfly.transaction.client._private.Log;
 import org.wildfly.transaction.client.spi.SimpleTransactionControl;
-import org.xnio.FinishedIoFuture;
+import org.xnio.FutureResult;
 import org.xnio.IoFuture;
 import org.xnio.OptionMap;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
-final class TransactionClientChannel implements RemotingOperations {
+final class TransactionClientChannel implements RemotingOperations, AsyncRemotingOperations {
     private final Channel channel;
     private final InvocationTracker invocationTracker;
     private final IntIndexMap<RemotingRemoteTransactionHandle> peerTransactionMap = new IntIndexHashMap<RemotingRemoteTransactionHandle>(RemotingRemoteTransactionHandle::getId);
     private final Channel.Receiver receiver = new ReceiverImpl();
+    private final XaBatchAggregator prepareAggregator;
+    private final XaBatchAggregator commitAggregator;
+    private final XaBatchAggregator rollbackAggregator;
+    private final UserTransactionBatchAggregator userCommitAggregator;
+    private final UserTransactionBatchAggregator userRollbackAggregator;
+    private final XidHandleTable xidHandles = new XidHandleTable();
+    private volatile int capabilities;
+    // rollback-only marks waiting for the next request for their XID, with their flush timers
+    private final ConcurrentHashMap<SimpleXid, XnioExecutor.Key> pendingRollbackOnly = new ConcurrentHashMap<>();
+
+    // the least time that is allowed for completing (rather than preparing) a transaction, in seconds
+    static final int COMPLETION_TIMEOUT = Math.max(1, RemotingProperties.getInt("completion-timeout-seconds", 120));
 
     private static final ClientServiceHandle<TransactionClientChannel> CLIENT_SERVICE_HANDLE = new ClientServiceHandle<>("txn", TransactionClientChannel::construct);
 
     TransactionClientChannel(final Channel channel) {
         this.channel = channel;
-        invocationTracker = new InvocationTracker(channel);
+        // keep the one-way invocation ID free
+        invocationTracker = new InvocationTracker(channel, index -> 1 + (index & Integer.MAX_VALUE) % 0xFFFF);
+        if (XaBatchAggregator.WINDOW_NANOS > 0) {
+            prepareAggregator = new XaBatchAggregator(this, Protocol.M_XA_PREPARE, Protocol.M_RESP_XA_PREPARE, Protocol.M_XA_BATCH_PREPARE, Protocol.M_RESP_XA_BATCH_PREPARE, XAException.XAER_RMERR);
+            commitAggregator = new XaBatchAggregator(this, Protocol.M_XA_COMMIT, Protocol.M_RESP_XA_COMMIT, Protocol.M_XA_BATCH_COMMIT, Protocol.M_RESP_XA_BATCH_COMMIT, XAException.XAER_RMFAIL);
+            rollbackAggregator = new XaBatchAggregator(this, Protocol.M_XA_ROLLBACK, Protocol.M_RESP_XA_ROLLBACK, Protocol.M_XA_BATCH_ROLLBACK, Protocol.M_RESP_XA_BATCH_ROLLBACK, XAException.XAER_RMERR);
+        } else {
+            prepareAggregator = commitAggregator = rollbackAggregator = null;
+        }
+        if (UserTransactionBatchAggregator.WINDOW_NANOS > 0) {
+            userCommitAggregator = new UserTransactionBatchAggregator(this, Protocol.M_UT_BATCH_COMMIT, Protocol.M_RESP_UT_BATCH_COMMIT);
+            userRollbackAggregator = new UserTransactionBatchAggregator(this, Protocol.M_UT_BATCH_ROLLBACK, Protocol.M_RESP_UT_BATCH_ROLLBACK);
+        } else {
+            userCommitAggregator = userRollbackAggregator = null;
+        }
     }
 
-    private static IoFuture<TransactionClientChannel> construct(final Channel channel) {
-        // future protocol versions might have to negotiate a version or capabilities before proceeding
+    static IoFuture<TransactionClientChannel> construct(final Channel channel) {
         final TransactionClientChannel clientChannel = new TransactionClientChannel(channel);
         channel.receiveMessage(clientChannel.getReceiver());
-        return new FinishedIoFuture<>(clientChannel);
+        // negotiate capabilities before the channel is handed out; a peer which acknowledges none gets the original protocol
+        final FutureResult<TransactionClientChannel> futureResult = new FutureResult<>();
+        final CompletableFuture<Integer> negotiation = clientChannel.negotiateCapabilities();
+        // a peer which never answers fails the channel, which is then closed
+        final XnioExecutor.Key timeoutKey = channel.getConnection().getEndpoint().getXnioWorker().getIoThread().executeAfter(() -> {
+            if (futureResult.setException(Log.log.channelOpenTimedOut(COMPLETION_TIMEOUT))) {
+                negotiation.cancel(false);
+            }
+        }, COMPLETION_TIMEOUT, TimeUnit.SECONDS);
+        negotiation.whenComplete((capabilities, problem) -> {
+            timeoutKey.remove();
+            if (problem == null) {
+                clientChannel.capabilities = capabilities.intValue();
+            } else if (! (problem instanceof CancellationException)) {
+                Log.log.inboundException(problem);
+            }
+            futureResult.setResult(clientChannel);
+        });
+        return futureResult.getIoFuture();
+    }
+
+    private CompletableFuture<Integer> negotiateCapabilities() {
+        final XaInvocation<Integer> invocation = invocationTracker.addInvocation(index -> new XaInvocation<>(index, TransactionClientChannel::readCapabilityResponse, XAException.XAER_RMERR));
+        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
+            os.writeShort(invocation.getIndex());
+            os.writeByte(Protocol.M_CAPABILITY);
+            for (int param : Protocol.CAPABILITY_PARAMS) {
+                Protocol.writeParam(param, os);
+            }
+        } catch (IOException e) {
+            invocation.failed(e);
+        }
+        return invocation.getFuture();
+    }
+
+    boolean hasCapability(final int capability) {
+        return (capabilities & capability) == capability;
     }
 
     @NotNull
     public SimpleTransactionControl begin(final ConnectionPeerIdentity peerIdentity) throws SystemException {
+        return begin(peerIdentity, 0);
+    }
+
+    @NotNull
+    public SimpleTransactionControl begin(final ConnectionPeerIdentity peerIdentity, final int timeout) throws SystemException {
         int id;
         final ThreadLocalRandom random = ThreadLocalRandom.current();
         final IntIndexMap<RemotingRemoteTransactionHandle> map = this.peerTransactionMap;
         RemotingRemoteTransactionHandle handle;
         do {
             id = random.nextInt();
-        } while (map.containsKey(id) || map.putIfAbsent(handle = new RemotingRemoteTransactionHandle(id, this)) != null);
+        } while (map.containsKey(id) || map.putIfAbsent(handle = new RemotingRemoteTransactionHandle(id, this, timeout)) != null);
         return handle;
     }
 
     public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_ROLLBACK);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+        rollback(xid, peerIdentity, 0);
+    }
+
+    public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        await(rollbackAsync(xid, peerIdentity, timeout));
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        setRollbackOnly(xid, peerIdentity, 0);
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        await(setRollbackOnlyAsync(xid, peerIdentity, timeout));
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        beforeCompletion(xid, peerIdentity, 0);
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        await(beforeCompletionAsync(xid, peerIdentity, timeout));
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return prepare(xid, peerIdentity, 0);
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        return await(prepareAsync(xid, peerIdentity, timeout)).intValue();
+    }
+
+    public int beforeCompletionAndPrepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return beforeCompletionAndPrepare(xid, peerIdentity, 0);
+    }
+
+    public int beforeCompletionAndPrepare(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        return await(beforeCompletionAndPrepareAsync(xid, peerIdentity, timeout)).intValue();
+    }
+
+    public boolean isBeforeCompletionDeferrable() {
+        return hasCapability(Protocol.CAP_XA_BEFORE_PREPARE);
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        forget(xid, peerIdentity, 0);
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        await(forgetAsync(xid, peerIdentity, timeout));
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        commit(xid, onePhase, peerIdentity, 0);
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        await(commitAsync(xid, onePhase, peerIdentity, timeout));
+    }
+
+    @NotNull
+    public Xid[] recover(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return await(recoverAsync(flag, parentName, peerIdentity));
+    }
+
+    public void deferRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        if (timeout <= 0 || ! hasCapability(Protocol.CAP_XA_RB_ONLY_PARAM)) {
+            setRollbackOnly(xid, peerIdentity, timeout);
+            return;
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_ROLLBACK) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(Log.log.peerXaException(error));
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(Log.log.peerSecurityException());
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+        final SimpleXid key = SimpleXid.of(xid);
+        final XnioWorker worker = getConnection().getEndpoint().getXnioWorker();
+        final XnioExecutor.Key timerKey = worker.getIoThread().executeAfter(() -> {
+            if (pendingRollbackOnly.remove(key) != null) {
+                // nothing else was sent in time; don't write from the I/O thread
+                worker.execute(() -> setRollbackOnlyAsync(key, peerIdentity, 0).whenComplete((ignored, problem) -> {
+                    if (problem != null) Log.log.oneWayRequestFailed(key, problem);
+                }));
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+        }, timeout, TimeUnit.SECONDS);
+        final XnioExecutor.Key old = pendingRollbackOnly.put(key, timerKey);
+        if (old != null) old.remove();
+    }
+
+    private boolean hasPendingRollbackOnly(final Xid xid) {
+        return ! pendingRollbackOnly.isEmpty() && pendingRollbackOnly.containsKey(SimpleXid.of(xid));
+    }
+
+    private boolean takePendingRollbackOnly(final Xid xid) {
+        if (pendingRollbackOnly.isEmpty()) {
+            return false;
+        }
+        final XnioExecutor.Key timerKey = pendingRollbackOnly.remove(SimpleXid.of(xid));
+        if (timerKey == null) {
+            return false;
         }
+        timerKey.remove();
+        return true;
     }
 
-    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        // write rollback-only request
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_RB_ONLY);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+    public CompletionStage<Void> rollbackAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        // rolling back makes any pending mark moot
+        takePendingRollbackOnly(xid);
+        final XaBatchAggregator aggregator = rollbackAggregator;
+        if (aggregator != null && hasCapability(Protocol.CAP_XA_BATCH)) {
+            return aggregator.submit(xid, peerIdentity, false, timeout).thenApply(TransactionClientChannel::toVoid);
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_RB_ONLY) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+        return invokeXa(Protocol.M_XA_ROLLBACK, xid, peerIdentity, false, ResponseDecoder.ROLLBACK, XAException.XAER_RMERR, timeout);
+    }
+
+    public CompletionStage<Void> setRollbackOnlyAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        if (hasCapability(Protocol.CAP_XA_ONE_WAY)) {
+            // the peer holds a failure until the next request for the branch
+            return invokeXaOneWay(Protocol.M_XA_RB_ONLY, xid, peerIdentity);
+        }
+        return invokeXa(Protocol.M_XA_RB_ONLY, xid, peerIdentity, false, ResponseDecoder.RB_ONLY, XAException.XAER_RMERR, timeout);
+    }
+
+    public CompletionStage<Void> beforeCompletionAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        return invokeXa(Protocol.M_XA_BEFORE, xid, peerIdentity, false, ResponseDecoder.BEFORE, XAException.XAER_RMERR, timeout);
+    }
+
+    public CompletionStage<Integer> prepareAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        final XaBatchAggregator aggregator = prepareAggregator;
+        if (aggregator != null && hasCapability(Protocol.CAP_XA_BATCH) && ! hasPendingRollbackOnly(xid)) {
+            return aggregator.submit(xid, peerIdentity, false, timeout);
+        }
+        return invokeXa(Protocol.M_XA_PREPARE, xid, peerIdentity, false, ResponseDecoder.PREPARE, XAException.XAER_RMERR, timeout);
+    }
+
+    public CompletionStage<Integer> beforeCompletionAndPrepareAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        if (! hasCapability(Protocol.CAP_XA_BEFORE_PREPARE)) {
+            // two round trips with older peers; don't write the second request from the receiving thread
+            return beforeCompletionAsync(xid, peerIdentity, timeout).thenComposeAsync(ignored -> prepareAsync(xid, peerIdentity, timeout), getConnection().getEndpoint().getXnioWorker());
+        }
+        return invokeXa(Protocol.M_XA_BEFORE_PREPARE, xid, peerIdentity, false, ResponseDecoder.BEFORE_PREPARE, XAException.XAER_RMERR, timeout);
+    }
+
+    public CompletionStage<Void> forgetAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        if (hasCapability(Protocol.CAP_XA_ONE_WAY)) {
+            // nothing can be done about a failure to forget other than logging it, which the peer does
+            return invokeXaOneWay(Protocol.M_XA_FORGET, xid, peerIdentity);
+        }
+        return invokeXa(Protocol.M_XA_FORGET, xid, peerIdentity, false, ResponseDecoder.FORGET, XAException.XAER_RMERR, timeout);
+    }
+
+    public CompletionStage<Void> commitAsync(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        final XaBatchAggregator aggregator = commitAggregator;
+        if (aggregator != null && hasCapability(Protocol.CAP_XA_BATCH) && ! hasPendingRollbackOnly(xid)) {
+            return aggregator.submit(xid, peerIdentity, onePhase, timeout).thenApply(TransactionClientChannel::toVoid);
+        }
+        return invokeXa(Protocol.M_XA_COMMIT, xid, peerIdentity, onePhase, ResponseDecoder.COMMIT, XAException.XAER_RMFAIL, timeout);
+    }
+
+    public CompletionStage<Xid[]> recoverAsync(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) {
+        if (! hasCapability(Protocol.CAP_XA_RECOVER_CURSOR)) {
+            // the peer sends everything in reply to the start of the scan
+            if ((flag & XAResource.TMSTARTRSCAN) == 0) {
+                return CompletableFuture.completedFuture(SimpleXid.NO_XIDS);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+            return recoverPage(-1, parentName, peerIdentity).thenApply(RecoverPage::getXids);
+        }
+        if ((flag & XAResource.TMSTARTRSCAN) != 0) {
+            // callers expect the whole scan in reply to its start, as with older peers; fetch it a page at a time
+            final ArrayList<Xid> xids = new ArrayList<>();
+            // don't write the next request from the receiving thread
+            return recoverPage(XAResource.TMSTARTRSCAN, parentName, peerIdentity).thenComposeAsync(page -> recoverRemaining(page, xids, parentName, peerIdentity), getConnection().getEndpoint().getXnioWorker());
+        } else if ((flag & XAResource.TMENDRSCAN) != 0) {
+            // everything was returned already; just make sure the peer's cursor is gone if the start failed half way
+            return recoverPage(XAResource.TMENDRSCAN, parentName, peerIdentity).thenApply(RecoverPage::getXids);
+        } else {
+            return CompletableFuture.completedFuture(SimpleXid.NO_XIDS);
         }
     }
 
-    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
+    private CompletionStage<Xid[]> recoverRemaining(final RecoverPage page, final ArrayList<Xid> xids, final String parentName, final ConnectionPeerIdentity peerIdentity) {
+        Collections.addAll(xids, page.getXids());
+        if (! page.isMore()) {
+            return CompletableFuture.completedFuture(xids.toArray(SimpleXid.NO_XIDS));
+        }
+        // don't write the next request from the receiving thread
+        return recoverPage(XAResource.TMNOFLAGS, parentName, peerIdentity).thenComposeAsync(next -> recoverRemaining(next, xids, parentName, peerIdentity), getConnection().getEndpoint().getXnioWorker());
+    }
+
+    private CompletableFuture<RecoverPage> recoverPage(final int flags, final String parentName, final ConnectionPeerIdentity peerIdentity) {
+        final XaInvocation<RecoverPage> invocation = invocationTracker.addInvocation(index -> new XaInvocation<>(index, TransactionClientChannel::readRecoverResponse, XAException.XAER_RMERR));
         // write request
         try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
             os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_BEFORE);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
+            os.writeByte(Protocol.M_XA_RECOVER);
             final int peerIdentityId = peerIdentity.getId();
             if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_PARENT_NAME, os, parentName);
+            if (flags != -1) Protocol.writeParam(Protocol.P_XA_FLAGS, os, flags, Protocol.UNSIGNED);
         } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
-        }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_BEFORE) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+            invocation.failed(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
         }
+        return invocation.getFuture();
     }
 
-    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        boolean readOnly = false;
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
+    <T> CompletableFuture<T> invokeXa(final int msgId, final Xid xid, final ConnectionPeerIdentity peerIdentity, final boolean onePhase, final XaResponseDecoder<T> decoder, final int failureCode, final int timeout) {
+        final XaInvocation<T> invocation = invocationTracker.addInvocation(index -> new XaInvocation<>(index, decoder, failureCode));
+        final int[] freedHandles = xidHandles.takeUnannounced();
+        XidHandleTable.Handle handle = null;
         // write request
         try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
             os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_PREPARE);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
+            os.writeByte(msgId);
+            writeFreedHandles(os, freedHandles);
+            handle = writeXid(os, xid);
             final int peerIdentityId = peerIdentity.getId();
             if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
+            if (onePhase) Protocol.writeParam(Protocol.P_ONE_PHASE, os);
+            if (timeout > 0) Protocol.writeParam(Protocol.P_TIMEOUT, os, (int) Math.min(Integer.MAX_VALUE, timeout * 1000L), Protocol.UNSIGNED);
+            if (canCarryRollbackOnly(msgId) && takePendingRollbackOnly(xid)) Protocol.writeParam(Protocol.P_RB_ONLY, os);
         } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+            invocation.failed(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_PREPARE) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id == Protocol.P_XA_RDONLY) {
-                    readOnly = true;
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+        final CompletableFuture<T> future = invocation.getFuture();
+        if (timeout > 0) {
+            expireAfter(future, timeout, () -> invocationTracker.remove(invocation));
+        }
+        if (handle != null) {
+            final XidHandleTable.Handle finalHandle = handle;
+            future.whenComplete((result, problem) -> xidHandles.release(finalHandle, invocation.isAnswered(), isBranchComplete(msgId, result, problem)));
+        }
+        if (freedHandles.length > 0) {
+            future.whenComplete((result, problem) -> xidHandles.announced(freedHandles, invocation.isAnswered()));
         }
-        return readOnly ? XAResource.XA_RDONLY : XAResource.XA_OK;
+        return future;
     }
 
-    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_FORGET);
+    private CompletableFuture<Void> invokeXaOneWay(final int msgId, final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        // write request; the full XID is sent as no answer will show that a handle was bound
+        try (MessageOutputStream os = invocationTracker.allocateMessage()) {
+            os.writeShort(Protocol.ONE_WAY_INV_ID);
+            os.writeByte(msgId);
             Protocol.writeParam(Protocol.P_XID, os, xid);
             final int peerIdentityId = peerIdentity.getId();
             if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_NO_REPLY, os);
         } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
+            return future;
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_FORGET) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+        if (msgId == Protocol.M_XA_FORGET) {
+            // the branch is complete without its handle having been used
+            xidHandles.complete(xid);
         }
+        return CompletableFuture.completedFuture(null);
     }
 
-    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
+    <T> CompletableFuture<T> invokeXaBatch(final int msgId, final List<Xid> xids, final List<? extends CompletionStage<Integer>> outcomes, final ConnectionPeerIdentity peerIdentity, final boolean onePhase, final XaResponseDecoder<T> decoder, final int failureCode) {
+        final XaInvocation<T> invocation = invocationTracker.addInvocation(index -> new XaInvocation<>(index, decoder, failureCode));
+        final int size = xids.size();
+        final XidHandleTable.Handle[] handles = new XidHandleTable.Handle[size];
+        final int[] freedHandles = xidHandles.takeUnannounced();
         // write request
         try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
             os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_COMMIT);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
+            os.writeByte(msgId);
+            writeFreedHandles(os, freedHandles);
+            for (int i = 0; i < size; i ++) {
+                handles[i] = writeXid(os, xids.get(i));
+            }
             final int peerIdentityId = peerIdentity.getId();
             if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
             if (onePhase) Protocol.writeParam(Protocol.P_ONE_PHASE, os);
         } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+            invocation.failed(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_COMMIT) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+        for (int i = 0; i < size; i ++) {
+            final XidHandleTable.Handle handle = handles[i];
+            if (handle != null) {
+                outcomes.get(i).whenComplete((result, problem) -> xidHandles.release(handle, invocation.isAnswered(), isBranchComplete(msgId, result, problem)));
+            }
+        }
+        final CompletableFuture<T> future = invocation.getFuture();
+        if (freedHandles.length > 0) {
+            future.whenComplete((result, problem) -> xidHandles.announced(freedHandles, invocation.isAnswered()));
+        }
+        return future;
+    }
+
+    /**
+     * Fail the given future with {@code XAER_RMFAIL} if it is not complete within the given time.
+     *
+     * @param future the future
+     * @param timeout the timeout in seconds
+     * @param onExpiry an action which releases the request's resources, or {@code null} for none
+     */
+    void expireAfter(final CompletableFuture<?> future, final int timeout, final Runnable onExpiry) {
+        final XnioExecutor.Key key = channel.getConnection().getEndpoint().getXnioWorker().getIoThread().executeAfter(() -> {
+            if (future.completeExceptionally(Log.log.responseFailedXa(Log.log.responseTimedOut(timeout), XAException.XAER_RMFAIL)) && onExpiry != null) {
+                onExpiry.run();
+            }
+        }, timeout, TimeUnit.SECONDS);
+        future.whenComplete((ignored, problem) -> key.remove());
+    }
+
+    private static void writeFreedHandles(final MessageOutputStream os, final int[] ids) throws IOException {
+        // ahead of everything else, so that the peer has dropped them by the time it answers
+        for (int id : ids) {
+            Protocol.writeParam(Protocol.P_XID_HANDLE_FREE, os, id, Protocol.UNSIGNED);
+        }
+    }
+
+    private XidHandleTable.Handle writeXid(final MessageOutputStream os, final Xid xid) throws IOException {
+        final XidHandleTable.Handle handle = hasCapability(Protocol.CAP_XID_HANDLE) ? xidHandles.acquire(xid) : null;
+        if (handle == null) {
+            Protocol.writeParam(Protocol.P_XID, os, xid);
+        } else {
+            // the full XID is sent until the peer is known to have bound the handle
+            if (! handle.isBound()) Protocol.writeParam(Protocol.P_XID, os, xid);
+            Protocol.writeParam(Protocol.P_XID_HANDLE, os, handle.getId(), Protocol.UNSIGNED);
+        }
+        return handle;
+    }
+
+    private static boolean canCarryRollbackOnly(final int msgId) {
+        switch (msgId) {
+            case Protocol.M_XA_BEFORE:
+            case Protocol.M_XA_PREPARE:
+            case Protocol.M_XA_BEFORE_PREPARE:
+            case Protocol.M_XA_COMMIT: {
+                return true;
+            }
+            default: {
+                return false;
+            }
+        }
+    }
+
+    private static boolean isBranchComplete(final int msgId, final Object result, final Throwable problem) {
+        switch (msgId) {
+            case Protocol.M_XA_ROLLBACK:
+            case Protocol.M_XA_COMMIT:
+            case Protocol.M_XA_FORGET:
+            case Protocol.M_XA_BATCH_ROLLBACK:
+            case Protocol.M_XA_BATCH_COMMIT: {
+                return true;
+            }
+            case Protocol.M_XA_PREPARE:
+            case Protocol.M_XA_BEFORE_PREPARE:
+            case Protocol.M_XA_BATCH_PREPARE: {
+                if (result instanceof Integer && ((Integer) result).intValue() == XAResource.XA_RDONLY) {
+                    return true;
                 }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMFAIL);
+                break;
             }
+        }
+        if (problem instanceof XAException) {
+            final int errorCode = ((XAException) problem).errorCode;
+            return errorCode == XAException.XAER_NOTA || errorCode >= XAException.XA_RBBASE && errorCode <= XAException.XA_RBEND;
+        }
+        return false;
+    }
+
+    private static Void toVoid(final Object ignored) {
+        return null;
+    }
+
+    private static <T> T await(final CompletionStage<T> stage) throws XAException {
+        final CompletableFuture<T> future = stage.toCompletableFuture();
+        try {
+            return future.get();
         } catch (InterruptedException e) {
+            future.cancel(false);
             Thread.currentThread().interrupt();
             throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof XAException) {
+                throw (XAException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw Log.log.unexpectedFailure(cause);
+            }
         }
     }
 
-    @NotNull
-    public Xid[] recover(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        if (flag != XAResource.TMSTARTRSCAN) {
-            return SimpleXid.NO_XIDS;
+    // response decoding; always called from the thread which received the response
+
+    static Integer readCapabilityResponse(final MessageInputStream is) throws IOException {
+        if (is.readUnsignedByte() != Protocol.M_RESP_CAPABILITY) {
+            // not understood; no capabilities
+            return Integer.valueOf(0);
         }
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_RECOVER);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-            Protocol.writeParam(Protocol.P_PARENT_NAME, os, parentName);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+        int capabilities = 0;
+        int id;
+        while ((id = is.read()) != -1) {
+            StreamUtils.skipBytes(is, StreamUtils.readPackedUnsignedInt32(is));
+            capabilities |= Protocol.capabilityOf(id);
+        }
+        return Integer.valueOf(capabilities);
+    }
+
+    static RecoverPage readRecoverResponse(final MessageInputStream is) throws XAException, IOException {
+        if (is.readUnsignedByte() != Protocol.M_RESP_XA_RECOVER) {
+            throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
         }
         final ArrayList<Xid> recoveryList = new ArrayList<>();
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_RECOVER) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                for (;;) {
-                    if (id == Protocol.P_XID) {
-                        recoveryList.add(Protocol.readXid(is, StreamUtils.readPackedUnsignedInt32(is)));
-                    } else if (id == Protocol.P_XA_ERROR) {
-                        int len = StreamUtils.readPackedSignedInt32(is);
-                        int error = is.readInt();
-                        final XAException xa = Log.log.peerXaException(error);
-                        xa.initCause(RemoteExceptionCause.readFromStream(is));
-                        if ((id = is.read()) != -1) {
-                            XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                            ex.addSuppressed(xa);
-                            throw ex;
-                        } else {
-                            throw xa;
-                        }
-                    } else if (id == Protocol.P_SEC_EXC) {
-                        int len = StreamUtils.readPackedSignedInt32(is);
-                        final SecurityException sx = Log.log.peerSecurityException();
-                        sx.initCause(RemoteExceptionCause.readFromStream(is));
-                        if ((id = is.read()) != -1) {
-                            XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                            ex.addSuppressed(sx);
-                            throw ex;
-                        } else {
-                            throw sx;
-                        }
-                    } else if (id != -1) {
-                        throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                    } else {
-                        break;
-                    }
-                    id = is.read();
-                }
+        boolean more = false;
+        int id = is.read();
+        for (;;) {
+            if (id == Protocol.P_XID) {
+                recoveryList.add(Protocol.readXid(is, StreamUtils.readPackedUnsignedInt32(is)));
+            } else if (id == Protocol.P_MORE) {
+                StreamUtils.skipBytes(is, StreamUtils.readPackedUnsignedInt32(is));
+                more = true;
+            } else if (id != -1) {
+                throw ResponseDecoder.readXaFailure(is, id);
+            } else {
+                break;
             }
-            return recoveryList.toArray(SimpleXid.NO_XIDS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+            id = is.read();
         }
+        return new RecoverPage(recoveryList.toArray(SimpleXid.NO_XIDS), more);
+    }
+
+    /**
+     * Submit the commit or rollback of a user transaction for sending in a batch with others, if batching is in use.
+     *
+     * @param commit {@code true} to commit the transaction, {@code false} to roll it back
+     * @param id the transaction context ID
+     * @param peerIdentityId the peer identity ID
+     * @return the future outcome, or {@code null} if the request must be sent by itself
+     */
+    CompletableFuture<Void> submitUserTransaction(final boolean commit, final int id, final int peerIdentityId) {
+        final UserTransactionBatchAggregator aggregator = commit ? userCommitAggregator : userRollbackAggregator;
+        return aggregator != null && hasCapability(Protocol.CAP_UT_BATCH) ? aggregator.submit(id, peerIdentityId) : null;
     }
 
     InvocationTracker getInvocationTracker() {
@@ -511,10 +609,90 @@ final class TransactionClientChannel implements RemotingOperations {
         return receiver;
     }
 
+    Channel getChannel() {
+        return channel;
+    }
+
     Connection getConnection() {
         return channel.getConnection();
     }
 
+    static final class RecoverPage {
+        private final Xid[] xids;
+        private final boolean more;
+
+        RecoverPage(final Xid[] xids, final boolean more) {
+            this.xids = xids;
+            this.more = more;
+        }
+
+        Xid[] getXids() {
+            return xids;
+        }
+
+        boolean isMore() {
+            return more;
+        }
+    }
+
+    interface XaResponseDecoder<T> {
+        T decode(MessageInputStream is) throws XAException, IOException;
+    }
+
+    /**
+     * An XA invocation whose response is decoded by the receiving thread and delivered through a future.  Cancelling
+     * the future releases the invocation; a response which arrives afterwards is discarded.
+     */
+    final class XaInvocation<T> extends Invocation {
+        private final XaResponseDecoder<T> decoder;
+        private final int failureCode;
+        private volatile boolean answered;
+        private final CompletableFuture<T> future = new CompletableFuture<T>() {
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                invocationTracker.remove(XaInvocation.this);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        XaInvocation(final int index, final XaResponseDecoder<T> decoder, final int failureCode) {
+            super(index);
+            this.decoder = decoder;
+            this.failureCode = failureCode;
+        }
+
+        CompletableFuture<T> getFuture() {
+            return future;
+        }
+
+        boolean isAnswered() {
+            return answered;
+        }
+
+        void failed(final Throwable cause) {
+            invocationTracker.remove(this);
+            future.completeExceptionally(cause);
+        }
+
+        public void handleResponse(final int parameter, final MessageInputStream inputStream) {
+            answered = true;
+            try (MessageInputStream is = inputStream) {
+                future.complete(decoder.decode(is));
+            } catch (XAException | RuntimeException e) {
+                future.completeExceptionally(e);
+            } catch (IOException e) {
+                future.completeExceptionally(Log.log.responseFailedXa(e, failureCode));
+            }
+        }
+
+        public void handleClosed() {
+            future.completeExceptionally(Log.log.responseFailedXa(new ChannelClosedException(), failureCode));
+        }
+
+        public void handleException(final IOException exception) {
+            future.completeExceptionally(Log.log.responseFailedXa(exception, failureCode));
+        }
+    }
+
     class ReceiverImpl implements Channel.Receiver {
         public void handleError(final Channel channel, final IOException error) {
             handleEnd(channel);
@@ -0,0 +1,379 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.jboss.remoting3.Channel;
+import org.jboss.remoting3.ClientServiceHandle;
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.ConnectionPeerIdentity;
+import org.wildfly.common.annotation.NotNull;
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client._private.Log;
+import org.wildfly.transaction.client.spi.SimpleTransactionControl;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+import org.xnio.OptionMap;
+
+/**
+ * Several transaction channels over one connection, so that the requests to a peer are not limited by the
+ * outstanding message window of a single channel.  The first request for an XID picks a channel by hash, and the XID
+ * stays on that channel until its branch is complete, which keeps the per-XID state of each channel (XID handles,
+ * pending rollback-only marks) intact; user transactions are spread over the channels as they begin, and stay on their
+ * channel from then on.  A channel which closes is dropped from the group and another one is opened in its place; the
+ * XIDs which were on it pick a channel again.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class TransactionClientChannelGroup implements RemotingOperations, AsyncRemotingOperations {
+    static final int CHANNEL_COUNT = Math.max(1, RemotingProperties.getInt("channels-per-connection", 1));
+
+    // beyond this, XIDs simply go to the channel they hash to
+    static final int MAX_AFFINITIES = Math.max(0, RemotingProperties.getInt("channel-affinity-max", 4096));
+
+    private static final ClientServiceHandle<TransactionClientChannelGroup> CLIENT_SERVICE_HANDLE = new ClientServiceHandle<>("txn", TransactionClientChannelGroup::construct);
+
+    private final Connection connection;
+    private final AtomicInteger next = new AtomicInteger();
+    // replaced as a whole whenever a channel is dropped or added; changes are protected by {@code this}
+    private volatile TransactionClientChannel[] channels;
+    // the channel of each XID whose branch is not known to be complete; hashing alone would move XIDs between channels
+    // as channels are dropped and added
+    private final ConcurrentHashMap<SimpleXid, TransactionClientChannel> affinities = new ConcurrentHashMap<>();
+
+    TransactionClientChannelGroup(final Connection connection, final TransactionClientChannel[] channels) {
+        this.connection = connection;
+        this.channels = channels;
+        for (TransactionClientChannel channel : channels) {
+            watch(channel);
+        }
+    }
+
+    private static IoFuture<TransactionClientChannelGroup> construct(final Channel channel) {
+        final FutureResult<TransactionClientChannelGroup> futureResult = new FutureResult<>();
+        final TransactionClientChannel[] channels = new TransactionClientChannel[CHANNEL_COUNT];
+        final AtomicInteger remaining = new AtomicInteger(CHANNEL_COUNT);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final Consumer<IOException> whenOpened = problem -> {
+            if (problem != null) {
+                failure.compareAndSet(null, problem);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                // carry on with the channels which could be opened
+                final TransactionClientChannel[] opened = Arrays.stream(channels).filter(Objects::nonNull).toArray(TransactionClientChannel[]::new);
+                if (opened.length == 0) {
+                    futureResult.setException(failure.get());
+                } else {
+                    futureResult.setResult(new TransactionClientChannelGroup(channel.getConnection(), opened));
+                }
+            }
+        };
+        construct(channel, 0, channels, whenOpened);
+        final Connection connection = channel.getConnection();
+        for (int i = 1; i < CHANNEL_COUNT; i ++) {
+            final int index = i;
+            connection.openChannel("txn", OptionMap.EMPTY).addNotifier(new IoFuture.HandlingNotifier<Channel, Void>() {
+                public void handleDone(final Channel extraChannel, final Void attachment) {
+                    construct(extraChannel, index, channels, whenOpened);
+                }
+
+                public void handleFailed(final IOException exception, final Void attachment) {
+                    Log.log.outboundException(exception);
+                    whenOpened.accept(exception);
+                }
+
+                public void handleCancelled(final Void attachment) {
+                    whenOpened.accept(new IOException("Cancelled"));
+                }
+            }, null);
+        }
+        return futureResult.getIoFuture();
+    }
+
+    private static void construct(final Channel channel, final int index, final TransactionClientChannel[] channels, final Consumer<IOException> whenOpened) {
+        TransactionClientChannel.construct(channel).addNotifier(new IoFuture.HandlingNotifier<TransactionClientChannel, Void>() {
+            public void handleDone(final TransactionClientChannel clientChannel, final Void attachment) {
+                channels[index] = clientChannel;
+                whenOpened.accept(null);
+            }
+
+            public void handleFailed(final IOException exception, final Void attachment) {
+                Log.log.outboundException(exception);
+                whenOpened.accept(exception);
+            }
+
+            public void handleCancelled(final Void attachment) {
+                whenOpened.accept(new IOException("Cancelled"));
+            }
+        }, null);
+    }
+
+    private void watch(final TransactionClientChannel channel) {
+        channel.getChannel().addCloseHandler((closed, exception) -> channelClosed(channel));
+    }
+
+    private void channelClosed(final TransactionClientChannel channel) {
+        synchronized (this) {
+            final TransactionClientChannel[] channels = this.channels;
+            // it may have been dropped already, by a replacement which saw it closed
+            final int idx = Arrays.asList(channels).indexOf(channel);
+            // the last one is kept, so that requests fail the way they do without a group until it is replaced
+            if (idx != -1 && channels.length > 1) {
+                final TransactionClientChannel[] remaining = new TransactionClientChannel[channels.length - 1];
+                System.arraycopy(channels, 0, remaining, 0, idx);
+                System.arraycopy(channels, idx + 1, remaining, idx, remaining.length - idx);
+                this.channels = remaining;
+            }
+        }
+        affinities.values().removeIf(c -> c == channel);
+        if (connection.isOpen()) {
+            reopen();
+        }
+    }
+
+    private void reopen() {
+        connection.openChannel("txn", OptionMap.EMPTY).addNotifier(new IoFuture.HandlingNotifier<Channel, Void>() {
+            public void handleDone(final Channel channel, final Void attachment) {
+                TransactionClientChannel.construct(channel).addNotifier(new IoFuture.HandlingNotifier<TransactionClientChannel, Void>() {
+                    public void handleDone(final TransactionClientChannel clientChannel, final Void attachment) {
+                        channelOpened(clientChannel);
+                    }
+
+                    public void handleFailed(final IOException exception, final Void attachment) {
+                        reopenFailed(exception);
+                    }
+                }, null);
+            }
+
+            public void handleFailed(final IOException exception, final Void attachment) {
+                reopenFailed(exception);
+            }
+        }, null);
+    }
+
+    private void reopenFailed(final IOException exception) {
+        // the group carries on with fewer channels
+        if (connection.isOpen()) {
+            Log.log.outboundException(exception);
+        }
+    }
+
+    private void channelOpened(final TransactionClientChannel channel) {
+        synchronized (this) {
+            final TransactionClientChannel[] channels = this.channels;
+            // drop a closed channel which was kept as the last one
+            final TransactionClientChannel[] open = Arrays.stream(channels).filter(c -> c.getChannel().isOpen()).toArray(TransactionClientChannel[]::new);
+            final TransactionClientChannel[] added = Arrays.copyOf(open, open.length + 1);
+            added[open.length] = channel;
+            this.channels = added;
+        }
+        // reopens at once if the channel has closed already
+        watch(channel);
+    }
+
+    int getChannelCount() {
+        return channels.length;
+    }
+
+    static RemotingOperations forConnection(final Connection connection) throws IOException {
+        if (CHANNEL_COUNT == 1) {
+            return TransactionClientChannel.forConnection(connection);
+        }
+        return CLIENT_SERVICE_HANDLE.getClientService(connection, OptionMap.EMPTY).get();
+    }
+
+    TransactionClientChannel channelFor(final Xid xid) {
+        // XID implementations need not hash by value
+        final SimpleXid key = SimpleXid.of(xid);
+        final TransactionClientChannel channel = affinities.get(key);
+        if (channel != null) {
+            return channel;
+        }
+        final TransactionClientChannel hashed = channelFor(key.hashCode());
+        if (affinities.size() >= MAX_AFFINITIES) {
+            return hashed;
+        }
+        final TransactionClientChannel existing = affinities.putIfAbsent(key, hashed);
+        if (existing != null) {
+            return existing;
+        }
+        if (! hashed.getChannel().isOpen()) {
+            // closed before it was recorded; don't keep it
+            affinities.remove(key, hashed);
+        }
+        return hashed;
+    }
+
+    private TransactionClientChannel channelForCompletion(final Xid xid) {
+        // the branch is complete, or will be retried from scratch
+        final SimpleXid key = SimpleXid.of(xid);
+        final TransactionClientChannel channel = affinities.remove(key);
+        return channel != null ? channel : channelFor(key.hashCode());
+    }
+
+    private int readOnly(final Xid xid, final TransactionClientChannel channel, final int result) {
+        if (result == XAResource.XA_RDONLY) {
+            // nothing more will be asked about the branch
+            affinities.remove(SimpleXid.of(xid), channel);
+        }
+        return result;
+    }
+
+    private TransactionClientChannel channelFor(final String parentName) {
+        // all pages of a recovery scan must be fetched from the same channel
+        return channelFor(Objects.hashCode(parentName));
+    }
+
+    private TransactionClientChannel channelFor(final int hash) {
+        final TransactionClientChannel[] channels = this.channels;
+        return channels[((hash ^ hash >>> 16) & Integer.MAX_VALUE) % channels.length];
+    }
+
+    @NotNull
+    public SimpleTransactionControl begin(final ConnectionPeerIdentity peerIdentity) throws SystemException {
+        return begin(peerIdentity, 0);
+    }
+
+    @NotNull
+    public SimpleTransactionControl begin(final ConnectionPeerIdentity peerIdentity, final int timeout) throws SystemException {
+        final TransactionClientChannel[] channels = this.channels;
+        return channels[(next.getAndIncrement() & Integer.MAX_VALUE) % channels.length].begin(peerIdentity, timeout);
+    }
+
+    public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        channelForCompletion(xid).rollback(xid, peerIdentity);
+    }
+
+    public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        channelForCompletion(xid).rollback(xid, peerIdentity, timeout);
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        channelFor(xid).setRollbackOnly(xid, peerIdentity);
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        channelFor(xid).setRollbackOnly(xid, peerIdentity, timeout);
+    }
+
+    public void deferRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        channelFor(xid).deferRollbackOnly(xid, peerIdentity, timeout);
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        channelFor(xid).beforeCompletion(xid, peerIdentity);
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        channelFor(xid).beforeCompletion(xid, peerIdentity, timeout);
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        final TransactionClientChannel channel = channelFor(xid);
+        return readOnly(xid, channel, channel.prepare(xid, peerIdentity));
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        final TransactionClientChannel channel = channelFor(xid);
+        return readOnly(xid, channel, channel.prepare(xid, peerIdentity, timeout));
+    }
+
+    public int beforeCompletionAndPrepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        final TransactionClientChannel channel = channelFor(xid);
+        return readOnly(xid, channel, channel.beforeCompletionAndPrepare(xid, peerIdentity));
+    }
+
+    public int beforeCompletionAndPrepare(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        final TransactionClientChannel channel = channelFor(xid);
+        return readOnly(xid, channel, channel.beforeCompletionAndPrepare(xid, peerIdentity, timeout));
+    }
+
+    public boolean isBeforeCompletionDeferrable() {
+        // the channels share one peer
+        return channels[0].isBeforeCompletionDeferrable();
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        channelForCompletion(xid).forget(xid, peerIdentity);
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        channelForCompletion(xid).forget(xid, peerIdentity, timeout);
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        channelForCompletion(xid).commit(xid, onePhase, peerIdentity);
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity, final int timeout) throws XAException {
+        channelForCompletion(xid).commit(xid, onePhase, peerIdentity, timeout);
+    }
+
+    @NotNull
+    public Xid[] recover(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return channelFor(parentName).recover(flag, parentName, peerIdentity);
+    }
+
+    public CompletionStage<Void> rollbackAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        return channelForCompletion(xid).rollbackAsync(xid, peerIdentity, timeout);
+    }
+
+    public CompletionStage<Void> setRollbackOnlyAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        return channelFor(xid).setRollbackOnlyAsync(xid, peerIdentity, timeout);
+    }
+
+    public CompletionStage<Void> beforeCompletionAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        return channelFor(xid).beforeCompletionAsync(xid, peerIdentity, timeout);
+    }
+
+    public CompletionStage<Integer> prepareAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        final TransactionClientChannel channel = channelFor(xid);
+        return channel.prepareAsync(xid, peerIdentity, timeout).thenApply(result -> readOnly(xid, channel, result.intValue()));
+    }
+
+    public CompletionStage<Integer> beforeCompletionAndPrepareAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        final TransactionClientChannel channel = channelFor(xid);
+        return channel.beforeCompletionAndPrepareAsync(xid, peerIdentity, timeout).thenApply(result -> readOnly(xid, channel, result.intValue()));
+    }
+
+    public CompletionStage<Void> forgetAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        return channelForCompletion(xid).forgetAsync(xid, peerIdentity, timeout);
+    }
+
+    public CompletionStage<Void> commitAsync(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity, final int timeout) {
+        return channelForCompletion(xid).commitAsync(xid, onePhase, peerIdentity, timeout);
+    }
+
+    public CompletionStage<Xid[]> recoverAsync(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) {
+        return channelFor(parentName).recoverAsync(flag, parentName, peerIdentity);
+    }
+}
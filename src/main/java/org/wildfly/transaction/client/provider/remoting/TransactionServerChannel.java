@@ -18,6 +18,7 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.lang.Math.max;
 import static org.jboss.remoting3.util.StreamUtils.writeInt8;
 import static org.jboss.remoting3.util.StreamUtils.writePackedUnsignedInt31;
 import static org.wildfly.transaction.client._private.Log.log;
@@ -27,11 +28,23 @@ import static org.wildfly.transaction.client.provider.remoting.RemotingTransacti
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.RollbackException;
+import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
@@ -53,6 +66,7 @@ import org.wildfly.transaction.client.RemoteTransactionPermission;
 import org.wildfly.transaction.client.SimpleXid;
 import org.wildfly.transaction.client.XARecoverable;
 import org.wildfly.transaction.client.spi.SubordinateTransactionControl;
+import org.xnio.XnioWorker;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
@@ -63,6 +77,33 @@ final class TransactionServerChannel {
     private final Channel channel;
     private final Channel.Receiver receiver = new ReceiverImpl();
     private final LocalTransactionContext localTransactionContext;
+    private final StripedExecutor executor;
+    private final Object xidHandleLock = new Object();
+    // XIDs by handle, as bound by the client; protected by {@code xidHandleLock}
+    private SimpleXid[] xidHandles = new SimpleXid[16];
+    // open recovery scans by parent name; protected by itself
+    private final HashMap<String, RecoveryCursor> recoveryCursors = new HashMap<>();
+    // failures of one-way rollback-only requests, reported on the next request for the XID; protected by itself
+    private final LinkedHashMap<SimpleXid, XAException> deferredFailures = new LinkedHashMap<SimpleXid, XAException>() {
+        protected boolean removeEldestEntry(final Map.Entry<SimpleXid, XAException> eldest) {
+            // the oldest is the least likely to see another request
+            return size() > MAX_DEFERRED_FAILURES;
+        }
+    };
+    // identities which were found to hold the remote transaction permission, by security context ID (-1 for none)
+    private final ConcurrentHashMap<Long, SecurityIdentity> authorizedIdentities = new ConcurrentHashMap<>();
+
+    // transactions found by XID on this channel, for the later requests of the same branch
+    private final ConcurrentHashMap<SimpleXid, ImportResult<LocalTransaction>> importedTransactions = new ConcurrentHashMap<>();
+
+    private static final int MAX_AUTHORIZED_IDENTITIES = 64;
+    private static final int MAX_IMPORTED_TRANSACTIONS = 1024;
+    private static final int MAX_DEFERRED_FAILURES = 1024;
+
+    private static final StackTraceElement[] NO_STACK = new StackTraceElement[0];
+    // encoded bodies of bare XA error codes, by code
+    private static final AtomicReferenceArray<byte[]> plainXAErrorBodies = new AtomicReferenceArray<>(XAException.XA_RBEND - XAException.XAER_OUTSIDE + 1);
+    private static final ThreadLocal<EncodeBuffer> encodeBuffers = ThreadLocal.withInitial(EncodeBuffer::new);
 
     private static final Attachments.Key<TransactionServerChannel> KEY = new Attachments.Key<>(TransactionServerChannel.class);
 
@@ -70,6 +111,7 @@ final class TransactionServerChannel {
         this.server = server;
         this.channel = channel;
         this.localTransactionContext = localTransactionContext;
+        executor = server.getTransactionService().getRequestExecutor();
         messageTracker = new MessageTracker(channel, channel.getOption(RemotingOptions.MAX_OUTBOUND_MESSAGES).intValue());
         channel.getConnection().getAttachments().attach(KEY, this);
     }
@@ -103,6 +145,14 @@ final class TransactionServerChannel {
                             handleUserTxnCommit(message, invId);
                             break;
                         }
+                        case M_UT_BATCH_COMMIT: {
+                            handleUserTxnBatch(message, invId, id, M_RESP_UT_BATCH_COMMIT);
+                            break;
+                        }
+                        case M_UT_BATCH_ROLLBACK: {
+                            handleUserTxnBatch(message, invId, id, M_RESP_UT_BATCH_ROLLBACK);
+                            break;
+                        }
 
                         case M_XA_ROLLBACK: {
                             handleXaTxnRollback(message, invId);
@@ -113,7 +163,11 @@ final class TransactionServerChannel {
                             break;
                         }
                         case M_XA_PREPARE: {
-                            handleXaTxnPrepare(message, invId);
+                            handleXaTxnPrepare(message, invId, false);
+                            break;
+                        }
+                        case M_XA_BEFORE_PREPARE: {
+                            handleXaTxnPrepare(message, invId, true);
                             break;
                         }
                         case M_XA_FORGET: {
@@ -132,6 +186,18 @@ final class TransactionServerChannel {
                             handleXaTxnRollbackOnly(message, invId);
                             break;
                         }
+                        case M_XA_BATCH_PREPARE: {
+                            handleXaTxnBatch(message, invId, id, M_RESP_XA_BATCH_PREPARE);
+                            break;
+                        }
+                        case M_XA_BATCH_COMMIT: {
+                            handleXaTxnBatch(message, invId, id, M_RESP_XA_BATCH_COMMIT);
+                            break;
+                        }
+                        case M_XA_BATCH_ROLLBACK: {
+                            handleXaTxnBatch(message, invId, id, M_RESP_XA_BATCH_ROLLBACK);
+                            break;
+                        }
 
                         default: {
                             try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
@@ -158,21 +224,35 @@ final class TransactionServerChannel {
         }
 
         public void handleError(final Channel channel, final IOException error) {
+            handleEnd(channel);
         }
 
         public void handleEnd(final Channel channel) {
+            closeRecoveryCursors();
+            authorizedIdentities.clear();
+            importedTransactions.clear();
+            synchronized (deferredFailures) {
+                deferredFailures.clear();
+            }
         }
     }
 
     void handleCapabilityMessage(final MessageInputStream message, final int invId) throws IOException {
-        while (message.read() != -1) {
-            // ignore parameters
-            readIntParam(message, StreamUtils.readPackedUnsignedInt32(message));
+        int param;
+        int capabilities = 0;
+        while ((param = message.read()) != -1) {
+            StreamUtils.skipBytes(message, StreamUtils.readPackedUnsignedInt32(message));
+            capabilities |= capabilityOf(param);
         }
-        // acknowledge no capabilities
+        // acknowledge each offered capability which we understand; unknown ones are simply not echoed back
         try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(M_RESP_CAPABILITY);
+            for (int capParam : CAPABILITY_PARAMS) {
+                if ((capabilities & capabilityOf(capParam)) != 0) {
+                    writeParam(capParam, outputStream);
+                }
+            }
         }
         return;
     }
@@ -207,9 +287,9 @@ final class TransactionServerChannel {
             writeParamError(invId);
             return;
         }
-        final LocalTxn txn = server.getTxnMap().removeKey(context);
-        if (txn == null) {
-            // nothing to roll back!
+        final LocalTxn txn = server.takeTxn(context);
+        if (txn == null || txn.isReaped()) {
+            // nothing (more) to roll back!
             writeSimpleResponse(M_RESP_UT_ROLLBACK, invId);
             return;
         }
@@ -217,7 +297,7 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAs((Runnable) () -> {
+        dispatch(txn.getId(), invId, () -> securityIdentity.runAs((Runnable) () -> {
             final LocalTransaction transaction = txn.getTransaction();
             if (transaction != null) try {
                 transaction.performAction(transaction::rollback);
@@ -233,7 +313,7 @@ final class TransactionServerChannel {
                 writeParamError(invId);
                 return;
             }
-        });
+        }));
     }
 
     void handleUserTxnCommit(final MessageInputStream message, final int invId) throws IOException {
@@ -266,17 +346,21 @@ final class TransactionServerChannel {
             writeParamError(invId);
             return;
         }
-        final LocalTxn txn = server.getTxnMap().removeKey(context);
+        final LocalTxn txn = server.takeTxn(context);
         if (txn == null) {
             // nothing to commit!
             writeSimpleResponse(M_RESP_UT_COMMIT, invId);
             return;
         }
+        if (txn.isReaped()) {
+            writeExceptionResponse(M_RESP_UT_COMMIT, invId, P_UT_RB_EXC, log.transactionReaped(context));
+            return;
+        }
         SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_UT_COMMIT, invId, secContext, hasSecContext);
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAs(() -> {
+        dispatch(txn.getId(), invId, () -> securityIdentity.runAs(() -> {
             final LocalTransaction transaction = txn.getTransaction();
             if (transaction != null) try {
                 transaction.performAction(transaction::commit);
@@ -300,7 +384,107 @@ final class TransactionServerChannel {
             } else {
                 writeParamError(invId);
             }
-        });
+        }));
+    }
+
+    void handleUserTxnBatch(final MessageInputStream message, final int invId, final int msgId, final int respId) throws IOException {
+        int param;
+        int len;
+        final ArrayList<Integer> contexts = new ArrayList<>();
+        int secContext = 0;
+        boolean hasSecContext = false;
+        while ((param = message.read()) != -1) {
+            len = StreamUtils.readPackedUnsignedInt32(message);
+            switch (param) {
+                case P_TXN_CONTEXT: {
+                    contexts.add(Integer.valueOf(readIntParam(message, len)));
+                    break;
+                }
+                case P_SEC_CONTEXT: {
+                    secContext = readIntParam(message, len);
+                    hasSecContext = true;
+                    break;
+                }
+                default: {
+                    // ignore bad parameter
+                    readIntParam(message, len);
+                }
+            }
+        }
+        if (contexts.isEmpty()) {
+            writeParamError(invId);
+            return;
+        }
+        SecurityIdentity securityIdentity = getSecurityIdentity(respId, invId, secContext, hasSecContext);
+        if (securityIdentity == null) {
+            return;
+        }
+        final int size = contexts.size();
+        final Exception[] problems = new Exception[size];
+        final AtomicInteger remaining = new AtomicInteger(size);
+        for (int i = 0; i < size; i ++) {
+            final int idx = i;
+            final LocalTxn txn = server.takeTxn(contexts.get(i).intValue());
+            if (txn == null || txn.isReaped()) {
+                if (txn != null && msgId == M_UT_BATCH_COMMIT) {
+                    problems[idx] = log.transactionReaped(txn.getId());
+                }
+                // nothing (more) to complete!
+                if (remaining.decrementAndGet() == 0) {
+                    writeUserTxnBatchResponse(invId, respId, contexts, problems);
+                }
+                continue;
+            }
+            // the transactions are independent of each other, so they are completed in parallel; whichever finishes last answers
+            dispatch(txn.getId(), invId, () -> {
+                securityIdentity.runAs(() -> {
+                    final LocalTransaction transaction = txn.getTransaction();
+                    if (transaction == null) {
+                        // as for a lone request, but only this entry is refused
+                        problems[idx] = log.invalidTxnState();
+                        return;
+                    }
+                    try {
+                        if (msgId == M_UT_BATCH_COMMIT) {
+                            transaction.performAction(transaction::commit);
+                        } else {
+                            transaction.performAction(transaction::rollback);
+                        }
+                    } catch (RollbackException | HeuristicMixedException | HeuristicRollbackException | SystemException e) {
+                        problems[idx] = e;
+                    } catch (Exception e) {
+                        problems[idx] = log.unexpectedException(e);
+                    }
+                });
+                if (remaining.decrementAndGet() == 0) {
+                    writeUserTxnBatchResponse(invId, respId, contexts, problems);
+                }
+            });
+        }
+    }
+
+    private void writeUserTxnBatchResponse(final int invId, final int respId, final ArrayList<Integer> contexts, final Exception[] problems) {
+        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+            outputStream.writeShort(invId);
+            outputStream.writeByte(respId);
+            for (int i = 0; i < problems.length; i ++) {
+                writeParam(P_TXN_CONTEXT, outputStream, contexts.get(i).intValue(), UNSIGNED);
+                final Exception problem = problems[i];
+                if (problem instanceof SystemException) {
+                    writeExceptionParam(outputStream, P_UT_SYS_EXC, problem, ((SystemException) problem).errorCode);
+                } else if (problem instanceof HeuristicRollbackException) {
+                    writeExceptionParam(outputStream, P_UT_HRE_EXC, problem);
+                } else if (problem instanceof RollbackException) {
+                    writeExceptionParam(outputStream, P_UT_RB_EXC, problem);
+                } else if (problem instanceof HeuristicMixedException) {
+                    writeExceptionParam(outputStream, P_UT_HME_EXC, problem);
+                } else if (problem instanceof IllegalStateException) {
+                    writeExceptionParam(outputStream, P_UT_IS_EXC, problem);
+                }
+            }
+        } catch (IOException e) {
+            log.outboundException(e);
+        }
     }
 
     /////////////////////////
@@ -309,6 +493,7 @@ final class TransactionServerChannel {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
         while ((param = message.read()) != - 1) {
@@ -318,6 +503,14 @@ final class TransactionServerChannel {
                     xid = readXid(message, len);
                     break;
                 }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_SEC_CONTEXT: {
                     secContext = readIntParam(message, len);
                     hasSecContext = true;
@@ -329,7 +522,8 @@ final class TransactionServerChannel {
                 }
             }
         }
-        if (xid == null) {
+        final SimpleXid resolvedXid = resolveXid(xid, xidHandle);
+        if (resolvedXid == null) {
             writeParamError(invId);
             return;
         }
@@ -337,34 +531,25 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
+        dispatch(resolvedXid.hashCode(), invId, () -> securityIdentity.runAsObjIntConsumer((x, i) -> {
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_ROLLBACK, i, new XAException(XAException.XAER_NOTA));
-                    return;
-                }
-                // run operation while associated
-                importResult.getTransaction().performConsumer(SubordinateTransactionControl::rollback, importResult.getControl());
+                xaRollback(x);
                 writeSimpleResponse(M_RESP_XA_ROLLBACK, i);
-            } catch (SystemException e) {
-                final XAException xae = new XAException(XAException.XAER_RMERR);
-                xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_ROLLBACK, i, xae);
-                return;
             } catch (XAException e) {
                 writeExceptionResponse(M_RESP_XA_ROLLBACK, i, e);
                 return;
             }
-        }, xid, invId);
+        }, resolvedXid, invId));
     }
 
     void handleXaTxnRollbackOnly(final MessageInputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        boolean noReply = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
@@ -372,18 +557,36 @@ final class TransactionServerChannel {
                     xid = readXid(message, len);
                     break;
                 }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_SEC_CONTEXT: {
                     secContext = readIntParam(message, len);
                     hasSecContext = true;
                     break;
                 }
+                case P_NO_REPLY: {
+                    noReply = true;
+                    readIntParam(message, len);
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
-        if (xid == null) {
+        final SimpleXid resolvedXid = resolveXid(xid, xidHandle);
+        if (noReply) {
+            handleOneWay(M_XA_RB_ONLY, resolvedXid, secContext, hasSecContext);
+            return;
+        }
+        if (resolvedXid == null) {
             writeParamError(invId);
             return;
         }
@@ -391,28 +594,26 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
+        dispatch(resolvedXid.hashCode(), invId, () -> securityIdentity.runAsObjIntConsumer((x, i) -> {
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_RB_ONLY, i, new XAException(XAException.XAER_NOTA));
-                    return;
-                }
-                importResult.getControl().end(XAResource.TMFAIL);
+                xaRollbackOnly(x);
                 writeSimpleResponse(M_RESP_XA_RB_ONLY, i);
             } catch (XAException e) {
                 writeExceptionResponse(M_RESP_XA_RB_ONLY, i, e);
                 return;
             }
-        }, xid, invId);
+        }, resolvedXid, invId));
     }
 
     void handleXaTxnBefore(final MessageInputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        boolean rollbackOnly = false;
+        int timeout = 0;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
@@ -420,53 +621,73 @@ final class TransactionServerChannel {
                     xid = readXid(message, len);
                     break;
                 }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
+                case P_TIMEOUT: {
+                    timeout = readIntParam(message, len);
+                    break;
+                }
                 case P_SEC_CONTEXT: {
                     secContext = readIntParam(message, len);
                     hasSecContext = true;
                     break;
                 }
+                case P_RB_ONLY: {
+                    rollbackOnly = true;
+                    readIntParam(message, len);
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
-        if (xid == null) {
+        final long deadline = deadlineOf(timeout);
+        final SimpleXid resolvedXid = resolveXid(xid, xidHandle);
+        if (resolvedXid == null) {
             writeParamError(invId);
             return;
         }
+        final boolean finalRollbackOnly = rollbackOnly;
         SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_XA_BEFORE, invId, secContext, hasSecContext);
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
+        dispatch(resolvedXid.hashCode(), invId, () -> securityIdentity.runAsObjIntConsumer((x, i) -> {
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_BEFORE, i, new XAException(XAException.XAER_NOTA));
-                    return;
+                if (isExpired(deadline)) {
+                    // the client has stopped waiting; nothing will be committed now
+                    xaRollbackOnly(x);
+                    throw log.transactionTimedOut(XAException.XA_RBTIMEOUT);
+                }
+                if (finalRollbackOnly) {
+                    xaRollbackOnly(x);
                 }
-                // run operation while associated
-                importResult.getTransaction().performConsumer(SubordinateTransactionControl::beforeCompletion, importResult.getControl());
+                xaBeforeCompletion(x);
                 writeSimpleResponse(M_RESP_XA_BEFORE, i);
-            } catch (SystemException e) {
-                final XAException xae = new XAException(XAException.XAER_RMERR);
-                xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_BEFORE, i, xae);
-                return;
             } catch (XAException e) {
                 writeExceptionResponse(M_RESP_XA_BEFORE, i, e);
                 return;
             }
-        }, xid, invId);
+        }, resolvedXid, invId));
     }
 
-    void handleXaTxnPrepare(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnPrepare(final MessageInputStream message, final int invId, final boolean beforeCompletion) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        boolean rollbackOnly = false;
+        int timeout = 0;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
@@ -474,58 +695,80 @@ final class TransactionServerChannel {
                     xid = readXid(message, len);
                     break;
                 }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
+                case P_TIMEOUT: {
+                    timeout = readIntParam(message, len);
+                    break;
+                }
                 case P_SEC_CONTEXT: {
                     secContext = readIntParam(message, len);
                     hasSecContext = true;
                     break;
                 }
+                case P_RB_ONLY: {
+                    rollbackOnly = true;
+                    readIntParam(message, len);
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
-        if (xid == null) {
+        final long deadline = deadlineOf(timeout);
+        final SimpleXid resolvedXid = resolveXid(xid, xidHandle);
+        if (resolvedXid == null) {
             writeParamError(invId);
             return;
         }
-        SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_XA_PREPARE, invId, secContext, hasSecContext);
+        final int respId = beforeCompletion ? M_RESP_XA_BEFORE_PREPARE : M_RESP_XA_PREPARE;
+        final boolean finalRollbackOnly = rollbackOnly;
+        SecurityIdentity securityIdentity = getSecurityIdentity(respId, invId, secContext, hasSecContext);
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
+        dispatch(resolvedXid.hashCode(), invId, () -> securityIdentity.runAsObjIntConsumer((x, i) -> {
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_PREPARE, invId, new XAException(XAException.XAER_NOTA));
-                    return;
+                if (isExpired(deadline)) {
+                    // the client has stopped waiting; do not prepare a branch that nobody will complete
+                    xaRollback(x);
+                    throw log.transactionTimedOut(XAException.XA_RBTIMEOUT);
+                }
+                if (finalRollbackOnly) {
+                    xaRollbackOnly(x);
                 }
-                // run operation while associated
-                int result = ! importResult.getTransaction().isImported() ? XAResource.XA_RDONLY : importResult.getControl().prepare();
-                if (result == XAResource.XA_RDONLY) {
-                    writeSimpleResponse(M_RESP_XA_PREPARE, i, P_XA_RDONLY);
+                if (beforeCompletion) {
+                    xaBeforeCompletion(x);
+                }
+                if (xaPrepare(x) == XAResource.XA_RDONLY) {
+                    writeSimpleResponse(respId, i, P_XA_RDONLY);
                 } else {
                     // XA_OK
-                    writeSimpleResponse(M_RESP_XA_PREPARE, i);
+                    writeSimpleResponse(respId, i);
                 }
             } catch (XAException e) {
-                writeExceptionResponse(M_RESP_XA_PREPARE, i, e);
-                return;
-            } catch (Exception e) {
-                final XAException xae = new XAException(XAException.XAER_RMERR);
-                xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_PREPARE, i, xae);
+                writeExceptionResponse(respId, i, e);
                 return;
             }
-        }, xid, invId);
+        }, resolvedXid, invId));
     }
 
     void handleXaTxnForget(final MessageInputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        boolean noReply = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
@@ -533,18 +776,36 @@ final class TransactionServerChannel {
                     xid = readXid(message, len);
                     break;
                 }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_SEC_CONTEXT: {
                     secContext = readIntParam(message, len);
                     hasSecContext = true;
                     break;
                 }
+                case P_NO_REPLY: {
+                    noReply = true;
+                    readIntParam(message, len);
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
-        if (xid == null) {
+        final SimpleXid resolvedXid = resolveXid(xid, xidHandle);
+        if (noReply) {
+            handleOneWay(M_XA_FORGET, resolvedXid, secContext, hasSecContext);
+            return;
+        }
+        if (resolvedXid == null) {
             writeParamError(invId);
             return;
         }
@@ -552,34 +813,25 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
+        dispatch(resolvedXid.hashCode(), invId, () -> securityIdentity.runAsObjIntConsumer((x, i) -> {
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_FORGET, i, new XAException(XAException.XAER_NOTA));
-                    return;
-                }
-                // run operation while associated
-                importResult.getControl().forget();
+                xaForget(x);
                 writeSimpleResponse(M_RESP_XA_FORGET, i);
             } catch (XAException e) {
                 writeExceptionResponse(M_RESP_XA_FORGET, i, e);
                 return;
-            } catch (Exception e) {
-                final XAException xae = new XAException(XAException.XAER_RMERR);
-                xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_FORGET, i, xae);
-                return;
             }
-        }, xid, invId);
+        }, resolvedXid, invId));
     }
 
     void handleXaTxnCommit(final MessageInputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        boolean rollbackOnly = false;
         boolean onePhase = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
@@ -588,6 +840,14 @@ final class TransactionServerChannel {
                     xid = readXid(message, len);
                     break;
                 }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_SEC_CONTEXT: {
                     secContext = readIntParam(message, len);
                     hasSecContext = true;
@@ -598,41 +858,457 @@ final class TransactionServerChannel {
                     readIntParam(message, len);
                     break;
                 }
+                case P_RB_ONLY: {
+                    rollbackOnly = true;
+                    readIntParam(message, len);
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
-        if (xid == null) {
+        final SimpleXid resolvedXid = resolveXid(xid, xidHandle);
+        if (resolvedXid == null) {
             writeParamError(invId);
             return;
         }
+        final boolean finalRollbackOnly = rollbackOnly;
         SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_XA_COMMIT, invId, secContext, hasSecContext);
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsConsumer((o, x) -> {
+        final Boolean onePhaseFlag = Boolean.valueOf(onePhase);
+        dispatch(resolvedXid.hashCode(), invId, () -> securityIdentity.runAsConsumer((o, x) -> {
             try {
-                final boolean onePhaseCopy = o.booleanValue();
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, ! onePhaseCopy);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_COMMIT, invId, new XAException(XAException.XAER_NOTA));
-                    return;
+                if (finalRollbackOnly) {
+                    xaRollbackOnly(x);
                 }
-                // run operation while associated
-                importResult.getControl().commit(onePhaseCopy);
+                xaCommit(x, o.booleanValue());
                 writeSimpleResponse(M_RESP_XA_COMMIT, invId);
             } catch (XAException e) {
                 writeExceptionResponse(M_RESP_XA_COMMIT, invId, e);
                 return;
-            } catch (Exception e) {
-                final XAException xae = new XAException(XAException.XAER_RMERR);
-                xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_COMMIT, invId, xae);
-                return;
             }
-        }, Boolean.valueOf(onePhase), xid);
+        }, onePhaseFlag, resolvedXid));
+    }
+
+    void handleXaTxnBatch(final MessageInputStream message, final int invId, final int msgId, final int respId) throws IOException {
+        int param;
+        int len;
+        final ArrayList<SimpleXid> xids = new ArrayList<>();
+        int secContext = 0;
+        boolean hasSecContext = false;
+        boolean onePhase = false;
+        boolean lastWasXid = false;
+        while ((param = message.read()) != - 1) {
+            len = StreamUtils.readPackedUnsignedInt32(message);
+            switch (param) {
+                case P_XID: {
+                    xids.add(readXid(message, len));
+                    lastWasXid = true;
+                    continue;
+                }
+                case P_XID_HANDLE_FREE: {
+                    freeXidHandle(readIntParam(message, len));
+                    break;
+                }
+                case P_XID_HANDLE: {
+                    final int xidHandle = readIntParam(message, len);
+                    if (lastWasXid) {
+                        // binds the preceding XID
+                        xids.set(xids.size() - 1, resolveXid(xids.get(xids.size() - 1), xidHandle));
+                    } else {
+                        xids.add(resolveXid(null, xidHandle));
+                    }
+                    break;
+                }
+                case P_SEC_CONTEXT: {
+                    secContext = readIntParam(message, len);
+                    hasSecContext = true;
+                    break;
+                }
+                case P_ONE_PHASE: {
+                    onePhase = true;
+                    readIntParam(message, len);
+                    break;
+                }
+                default: {
+                    // ignore bad parameter
+                    readIntParam(message, len);
+                }
+            }
+            lastWasXid = false;
+        }
+        if (xids.isEmpty() || xids.contains(null)) {
+            writeParamError(invId);
+            return;
+        }
+        SecurityIdentity securityIdentity = getSecurityIdentity(respId, invId, secContext, hasSecContext);
+        if (securityIdentity == null) {
+            return;
+        }
+        final boolean finalOnePhase = onePhase;
+        final int size = xids.size();
+        final int[] results = new int[size];
+        final XAException[] problems = new XAException[size];
+        final AtomicInteger remaining = new AtomicInteger(size);
+        for (int i = 0; i < size; i ++) {
+            final int idx = i;
+            final SimpleXid xid = xids.get(i);
+            // each branch stays ordered with the other requests for its XID; whichever branch finishes last answers
+            dispatch(xid.hashCode(), invId, () -> {
+                securityIdentity.runAs(() -> {
+                    try {
+                        switch (msgId) {
+                            case M_XA_BATCH_PREPARE: {
+                                results[idx] = xaPrepare(xid);
+                                break;
+                            }
+                            case M_XA_BATCH_COMMIT: {
+                                xaCommit(xid, finalOnePhase);
+                                break;
+                            }
+                            case M_XA_BATCH_ROLLBACK: {
+                                xaRollback(xid);
+                                break;
+                            }
+                            default: {
+                                throw new XAException(XAException.XAER_PROTO);
+                            }
+                        }
+                    } catch (XAException e) {
+                        problems[idx] = e;
+                    } catch (RuntimeException e) {
+                        final XAException xae = new XAException(XAException.XAER_RMERR);
+                        xae.initCause(e);
+                        problems[idx] = xae;
+                    }
+                });
+                if (remaining.decrementAndGet() == 0) {
+                    writeBatchResponse(invId, respId, xids, results, problems);
+                }
+            });
+        }
+    }
+
+    private void writeBatchResponse(final int invId, final int respId, final ArrayList<SimpleXid> xids, final int[] results, final XAException[] problems) {
+        // every operation has run before the response is opened, so that slow branches do not hold an outbound message
+        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+            outputStream.writeShort(invId);
+            outputStream.writeByte(respId);
+            for (int i = 0; i < results.length; i ++) {
+                writeParam(P_XID, outputStream, xids.get(i));
+                final XAException problem = problems[i];
+                if (problem != null) {
+                    writeExceptionParam(outputStream, P_XA_ERROR, problem, problem.errorCode);
+                } else if (results[i] == XAResource.XA_RDONLY) {
+                    writeParam(P_XA_RDONLY, outputStream);
+                }
+            }
+        } catch (IOException e) {
+            log.outboundException(e);
+        }
+    }
+
+    /**
+     * Handle a request which was sent with {@code P_NO_REPLY}.  Nothing is written in reply; a failure is logged and,
+     * for a rollback-only request, held back to fail the next request for the XID.
+     *
+     * @param msgId the request message ID
+     * @param xid the resolved XID, or {@code null} if there is none
+     * @param secContext the security context ID
+     * @param hasSecContext {@code true} if the security context ID was given
+     */
+    private void handleOneWay(final int msgId, final SimpleXid xid, final int secContext, final boolean hasSecContext) {
+        if (xid == null) {
+            // there is nobody to tell
+            log.inboundException(log.protocolErrorXA(XAException.XAER_PROTO));
+            return;
+        }
+        final SecurityIdentity securityIdentity;
+        try {
+            securityIdentity = getAuthorizedIdentity(secContext, hasSecContext);
+        } catch (SecurityException e) {
+            log.oneWayRequestFailed(xid, e);
+            return;
+        }
+        dispatch(xid.hashCode(), -1, () -> securityIdentity.runAs(() -> {
+            try {
+                if (msgId == M_XA_RB_ONLY) {
+                    xaRollbackOnly(xid);
+                } else {
+                    xaForget(xid);
+                }
+            } catch (XAException e) {
+                log.oneWayRequestFailed(xid, e);
+                // an unknown branch fails every later request by itself
+                if (msgId == M_XA_RB_ONLY && e.errorCode != XAException.XAER_NOTA) {
+                    synchronized (deferredFailures) {
+                        deferredFailures.put(xid, e);
+                    }
+                }
+            }
+        }));
+    }
+
+    private void checkDeferredFailure(final SimpleXid xid) throws XAException {
+        final XAException failure;
+        synchronized (deferredFailures) {
+            failure = deferredFailures.remove(xid);
+        }
+        if (failure != null) {
+            // the branch may not have been marked rollback-only, so it must not get any further
+            throw failure;
+        }
+    }
+
+    private void clearDeferredFailure(final SimpleXid xid) {
+        synchronized (deferredFailures) {
+            deferredFailures.remove(xid);
+        }
+    }
+
+    /**
+     * Run a request's operation.  Without a request executor the operation runs on the receiving thread; otherwise
+     * it is queued behind the earlier requests with the same key, and a failure is reported to the peer as
+     * {@code M_RESP_ERROR}.
+     *
+     * @param key the ordering key (the XID hash code or the transaction context ID)
+     * @param invId the invocation ID of the request, or -1 if the request has no response
+     * @param operation the operation
+     */
+    void dispatch(final int key, final int invId, final Runnable operation) {
+        final StripedExecutor executor = this.executor;
+        if (executor == null) {
+            operation.run();
+            return;
+        }
+        executor.execute(key, () -> {
+            try {
+                operation.run();
+            } catch (Throwable t) {
+                if (invId != -1) try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+                    outputStream.writeShort(invId);
+                    outputStream.writeByte(M_RESP_ERROR);
+                } catch (IOException e) {
+                    log.outboundException(e);
+                }
+                throw t;
+            }
+        });
+    }
+
+    /**
+     * Drop the XID bound to a handle which the client has given up.
+     *
+     * @param xidHandle the XID handle
+     */
+    void freeXidHandle(final int xidHandle) {
+        synchronized (xidHandleLock) {
+            final SimpleXid[] xidHandles = this.xidHandles;
+            if (xidHandle >= 0 && xidHandle < xidHandles.length) {
+                xidHandles[xidHandle] = null;
+            }
+        }
+    }
+
+    /**
+     * Resolve the XID of a request which may carry an XID handle.  A handle sent along with an XID binds the handle
+     * to that XID; a handle sent alone stands for the XID most recently bound to it.
+     *
+     * @param xid the XID from the request, or {@code null} if none was given
+     * @param xidHandle the XID handle from the request, or -1 if none was given
+     * @return the resolved XID, or {@code null} if there is none or the handle is invalid
+     */
+    SimpleXid resolveXid(final SimpleXid xid, final int xidHandle) {
+        if (xidHandle == -1) {
+            return xid;
+        }
+        if (xidHandle < 0 || xidHandle >= MAX_XID_HANDLES) {
+            return null;
+        }
+        synchronized (xidHandleLock) {
+            SimpleXid[] xidHandles = this.xidHandles;
+            if (xid == null) {
+                return xidHandle < xidHandles.length ? xidHandles[xidHandle] : null;
+            }
+            if (xidHandle >= xidHandles.length) {
+                this.xidHandles = xidHandles = Arrays.copyOf(xidHandles, Math.min(MAX_XID_HANDLES, Math.max(xidHandle + 1, xidHandles.length << 1)));
+            }
+            xidHandles[xidHandle] = xid;
+            return xid;
+        }
+    }
+
+    /**
+     * Find the transaction of a request's XID, importing it if allowed.  A transaction found earlier on this channel is
+     * used again while it has not completed, which spares the lookup through the provider and the local transaction
+     * attachment.
+     *
+     * @param xid the XID
+     * @param doNotImport {@code true} to only find an existing transaction
+     * @return the import result, or {@code null} if there is no such transaction and none was imported
+     * @throws XAException if the lookup failed
+     */
+    ImportResult<LocalTransaction> findTransaction(final SimpleXid xid, final boolean doNotImport) throws XAException {
+        ImportResult<LocalTransaction> importResult = importedTransactions.get(xid);
+        if (importResult != null) {
+            if (isUnfinished(importResult.getTransaction())) {
+                return importResult;
+            }
+            // completed by other means, such as a timeout or recovery on another channel
+            importedTransactions.remove(xid, importResult);
+        }
+        importResult = localTransactionContext.findOrImportTransaction(xid, 0, doNotImport);
+        if (importResult != null) {
+            if (importedTransactions.size() >= MAX_IMPORTED_TRANSACTIONS) {
+                importedTransactions.clear();
+            }
+            importedTransactions.put(xid, importResult);
+        }
+        return importResult;
+    }
+
+    private static boolean isUnfinished(final LocalTransaction transaction) {
+        try {
+            switch (transaction.getStatus()) {
+                case Status.STATUS_ACTIVE:
+                case Status.STATUS_MARKED_ROLLBACK:
+                case Status.STATUS_PREPARING:
+                case Status.STATUS_PREPARED: {
+                    return true;
+                }
+                default: {
+                    return false;
+                }
+            }
+        } catch (SystemException e) {
+            return false;
+        }
+    }
+
+    private static long deadlineOf(final int timeout) {
+        // measured from when the request was read; the client started waiting a little earlier
+        return timeout > 0 ? max(1L, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)) : 0L;
+    }
+
+    private static boolean isExpired(final long deadline) {
+        return deadline != 0L && System.nanoTime() - deadline > 0L;
+    }
+
+    // XA operations, shared by the single and batch handlers; always called with the requesting identity associated
+
+    void xaRollback(final SimpleXid xid) throws XAException {
+        clearDeferredFailure(xid);
+        try {
+            final ImportResult<LocalTransaction> importResult = findTransaction(xid, true);
+            if (importResult == null) {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+            // run operation while associated
+            importResult.getTransaction().performConsumer(SubordinateTransactionControl::rollback, importResult.getControl());
+        } catch (SystemException e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            throw xae;
+        } finally {
+            importedTransactions.remove(xid);
+        }
+    }
+
+    void xaRollbackOnly(final SimpleXid xid) throws XAException {
+        final ImportResult<LocalTransaction> importResult = findTransaction(xid, true);
+        if (importResult == null) {
+            throw new XAException(XAException.XAER_NOTA);
+        }
+        importResult.getControl().end(XAResource.TMFAIL);
+        // the branch is marked now, whatever happened to an earlier attempt
+        clearDeferredFailure(xid);
+    }
+
+    void xaBeforeCompletion(final SimpleXid xid) throws XAException {
+        checkDeferredFailure(xid);
+        try {
+            final ImportResult<LocalTransaction> importResult = findTransaction(xid, true);
+            if (importResult == null) {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+            // run operation while associated
+            importResult.getTransaction().performConsumer(SubordinateTransactionControl::beforeCompletion, importResult.getControl());
+        } catch (SystemException e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            throw xae;
+        }
+    }
+
+    int xaPrepare(final SimpleXid xid) throws XAException {
+        checkDeferredFailure(xid);
+        try {
+            final ImportResult<LocalTransaction> importResult = findTransaction(xid, true);
+            if (importResult == null) {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+            // run operation while associated
+            if (! importResult.getTransaction().isImported()) {
+                importedTransactions.remove(xid);
+                return XAResource.XA_RDONLY;
+            }
+            final int result = importResult.getControl().prepare();
+            if (result == XAResource.XA_RDONLY) {
+                // the branch is complete already
+                importedTransactions.remove(xid);
+            }
+            return result;
+        } catch (XAException e) {
+            throw e;
+        } catch (Exception e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            throw xae;
+        }
+    }
+
+    void xaForget(final SimpleXid xid) throws XAException {
+        clearDeferredFailure(xid);
+        try {
+            final ImportResult<LocalTransaction> importResult = findTransaction(xid, true);
+            if (importResult == null) {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+            // run operation while associated
+            importResult.getControl().forget();
+        } catch (XAException e) {
+            throw e;
+        } catch (Exception e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            throw xae;
+        } finally {
+            importedTransactions.remove(xid);
+        }
+    }
+
+    void xaCommit(final SimpleXid xid, final boolean onePhase) throws XAException {
+        checkDeferredFailure(xid);
+        try {
+            final ImportResult<LocalTransaction> importResult = findTransaction(xid, ! onePhase);
+            if (importResult == null) {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+            // run operation while associated
+            importResult.getControl().commit(onePhase);
+        } catch (XAException e) {
+            throw e;
+        } catch (Exception e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            throw xae;
+        } finally {
+            importedTransactions.remove(xid);
+        }
     }
 
     void handleXaTxnRecover(final MessageInputStream message, final int invId) throws IOException {
@@ -641,6 +1317,8 @@ final class TransactionServerChannel {
         int secContext = 0;
         String parentName = null;
         boolean hasSecContext = false;
+        int flags = 0;
+        boolean hasFlags = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
@@ -653,6 +1331,11 @@ final class TransactionServerChannel {
                     parentName = readStringParam(message, len);
                     break;
                 }
+                case P_XA_FLAGS: {
+                    flags = readIntParam(message, len);
+                    hasFlags = true;
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
@@ -664,7 +1347,13 @@ final class TransactionServerChannel {
             return;
         }
         final String finalParentName = parentName;
-        securityIdentity.runAs(() -> {
+        if (hasFlags) {
+            final int finalFlags = flags;
+            // requests of one scan must stay in order
+            dispatch(Objects.hashCode(parentName), invId, () -> securityIdentity.runAs(() -> recoverPage(invId, finalParentName, finalFlags)));
+            return;
+        }
+        dispatch(invId, invId, () -> securityIdentity.runAs(() -> {
             final XARecoverable recoverable = localTransactionContext.getRecoveryInterface();
             Xid[] xids;
             try {
@@ -731,20 +1420,134 @@ final class TransactionServerChannel {
                     log.recoverySuppressedException(e1);
                 }
             }
-        });
+        }));
+    }
+
+    private void recoverPage(final int invId, final String parentName, final int flags) {
+        final Xid[] page;
+        final int cnt;
+        final boolean more;
+        RecoveryCursor cursor;
+        try {
+            if ((flags & XAResource.TMSTARTRSCAN) != 0) {
+                cursor = RecoveryCursor.open(localTransactionContext.getRecoveryInterface(), parentName);
+                final RecoveryCursor old;
+                synchronized (recoveryCursors) {
+                    old = recoveryCursors.put(parentName, cursor);
+                }
+                if (old != null) old.close();
+                expireIdleCursor(parentName, cursor, RecoveryCursor.IDLE_NANOS);
+            } else {
+                synchronized (recoveryCursors) {
+                    cursor = recoveryCursors.get(parentName);
+                }
+            }
+            if (cursor == null || (flags & XAResource.TMSTARTRSCAN) == 0 && (flags & XAResource.TMENDRSCAN) != 0) {
+                // no scan in progress, or the client is abandoning it
+                if (cursor != null) closeCursor(parentName, cursor);
+                page = SimpleXid.NO_XIDS;
+                cnt = 0;
+                more = false;
+            } else {
+                page = new Xid[RecoveryCursor.PAGE_SIZE];
+                cnt = cursor.nextPage(page);
+                more = cursor.hasNext();
+                if (! more) closeCursor(parentName, cursor);
+            }
+        } catch (XAException e) {
+            // the cursor has ended its scan
+            synchronized (recoveryCursors) {
+                recoveryCursors.remove(parentName);
+            }
+            writeExceptionResponse(M_RESP_XA_RECOVER, invId, e);
+            return;
+        }
+        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+            outputStream.writeShort(invId);
+            outputStream.writeByte(M_RESP_XA_RECOVER);
+            for (int i = 0; i < cnt; i ++) {
+                writeParam(P_XID, outputStream, page[i]);
+            }
+            if (more) writeParam(P_MORE, outputStream);
+        } catch (IOException e) {
+            log.outboundException(e);
+            // the page is lost, so the scan can't be continued
+            if (more) closeCursor(parentName, cursor);
+        }
+    }
+
+    /**
+     * Close a recovery scan which the client abandons, once it has been idle for the idle timeout.
+     */
+    private void expireIdleCursor(final String parentName, final RecoveryCursor cursor, final long delay) {
+        final XnioWorker worker = channel.getConnection().getEndpoint().getXnioWorker();
+        worker.getIoThread().executeAfter(() -> {
+            synchronized (recoveryCursors) {
+                if (recoveryCursors.get(parentName) != cursor) {
+                    // finished or replaced
+                    return;
+                }
+            }
+            final long remaining = cursor.getIdleRemaining();
+            if (remaining > 0L) {
+                expireIdleCursor(parentName, cursor, remaining);
+            } else {
+                // ending the scan may block
+                worker.execute(() -> closeCursor(parentName, cursor));
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void closeCursor(final String parentName, final RecoveryCursor cursor) {
+        synchronized (recoveryCursors) {
+            recoveryCursors.remove(parentName, cursor);
+        }
+        cursor.close();
+    }
+
+    void closeRecoveryCursors() {
+        final ArrayList<RecoveryCursor> cursors;
+        synchronized (recoveryCursors) {
+            cursors = new ArrayList<>(recoveryCursors.values());
+            recoveryCursors.clear();
+        }
+        for (RecoveryCursor cursor : cursors) {
+            cursor.close();
+        }
     }
 
     private SecurityIdentity getSecurityIdentity(int msgId, int invId, int secContext, boolean hasSecContext) {
+        try {
+            return getAuthorizedIdentity(secContext, hasSecContext);
+        } catch (SecurityException e) {
+            writeExceptionResponse(msgId, invId, P_SEC_EXC, e);
+            return null;
+        }
+    }
+
+    private SecurityIdentity getAuthorizedIdentity(int secContext, boolean hasSecContext) throws SecurityException {
         SecurityIdentity securityIdentity;
         if (hasSecContext) {
             securityIdentity = channel.getConnection().getLocalIdentity(secContext);
         } else {
             securityIdentity = channel.getConnection().getLocalIdentity();
         }
+        if (securityIdentity == null) {
+            // the peer never authenticated the context, or has released it
+            throw log.unknownSecurityContext(secContext & 0xFFFFFFFFL);
+        }
+        final Long key = Long.valueOf(hasSecContext ? secContext & 0xFFFFFFFFL : -1L);
+        if (authorizedIdentities.get(key) == securityIdentity) {
+            // a released context ID which is used again stands for a different identity instance, which is checked afresh
+            return securityIdentity;
+        }
         if(!securityIdentity.implies(RemoteTransactionPermission.getInstance())) {
-            writeExceptionResponse(msgId, invId, P_SEC_EXC, log.noPermission(securityIdentity.getPrincipal().getName(), RemoteTransactionPermission.getInstance()));
-            return null;
+            throw log.noPermission(securityIdentity.getPrincipal().getName(), RemoteTransactionPermission.getInstance());
+        }
+        if (authorizedIdentities.size() >= MAX_AUTHORIZED_IDENTITIES) {
+            authorizedIdentities.clear();
         }
+        authorizedIdentities.put(key, securityIdentity);
         return securityIdentity;
     }
 
@@ -764,34 +1567,104 @@ final class TransactionServerChannel {
         try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(msgId);
-            writeInt8(outputStream, exceptionKind);
-            final RemoteExceptionCause remoteExceptionCause = RemoteExceptionCause.of(e);
-            final ByteArrayOutputStream os = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(os);
-            remoteExceptionCause.writeToStream(dos);
-            dos.flush();
-            writePackedUnsignedInt31(outputStream, os.size());
-            os.writeTo(outputStream);
+            writeExceptionParam(outputStream, exceptionKind, e);
         } catch (IOException ioe) {
             log.outboundException(ioe);
         }
     }
 
+    private static void writeExceptionParam(final OutputStream outputStream, final int exceptionKind, final Exception e) throws IOException {
+        writeInt8(outputStream, exceptionKind);
+        final EncodeBuffer buffer = encodeBuffers.get();
+        try {
+            RemoteExceptionCause.of(e).writeToStream(buffer.data);
+            buffer.writeBodyTo(outputStream);
+        } finally {
+            buffer.release();
+        }
+    }
+
     private void writeExceptionResponse(final int msgId, final int invId, final int exceptionKind, final Exception e, int errorCode) {
         try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(msgId);
-            writeInt8(outputStream, exceptionKind);
-            final RemoteExceptionCause remoteExceptionCause = RemoteExceptionCause.of(e);
+            writeExceptionParam(outputStream, exceptionKind, e, errorCode);
+        } catch (IOException ioe) {
+            log.outboundException(ioe);
+        }
+    }
+
+    private static void writeExceptionParam(final OutputStream outputStream, final int exceptionKind, final Exception e, int errorCode) throws IOException {
+        writeInt8(outputStream, exceptionKind);
+        if (isPlainXAException(e, errorCode)) {
+            final byte[] body = getPlainXAErrorBody(errorCode);
+            writePackedUnsignedInt31(outputStream, body.length);
+            outputStream.write(body);
+            return;
+        }
+        final EncodeBuffer buffer = encodeBuffers.get();
+        try {
+            buffer.data.writeInt(errorCode);
+            RemoteExceptionCause.of(e).writeToStream(buffer.data);
+            buffer.writeBodyTo(outputStream);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Determine whether an exception is a bare XA error code, such as the {@code XAER_NOTA} of a lookup which found
+     * nothing.  Such an exception carries nothing beyond its code and the stack of the thread which threw it, so its
+     * pre-encoded stackless form is sent in its place.
+     */
+    private static boolean isPlainXAException(final Exception e, final int errorCode) {
+        return e.getClass() == XAException.class && ((XAException) e).errorCode == errorCode
+            && errorCode >= XAException.XAER_OUTSIDE && errorCode <= XAException.XA_RBEND
+            && e.getMessage() == null && e.getCause() == null && e.getSuppressed().length == 0;
+    }
+
+    private static byte[] getPlainXAErrorBody(final int errorCode) throws IOException {
+        final int idx = errorCode - XAException.XAER_OUTSIDE;
+        byte[] body = plainXAErrorBodies.get(idx);
+        if (body == null) {
+            // racing threads produce equal bodies
+            final XAException e = new XAException(errorCode);
+            e.setStackTrace(NO_STACK);
             final ByteArrayOutputStream os = new ByteArrayOutputStream();
             final DataOutputStream dos = new DataOutputStream(os);
             dos.writeInt(errorCode);
-            remoteExceptionCause.writeToStream(dos);
+            RemoteExceptionCause.of(e).writeToStream(dos);
             dos.flush();
-            writePackedUnsignedInt31(outputStream, os.size());
-            os.writeTo(outputStream);
-        } catch (IOException ioe) {
-            log.outboundException(ioe);
+            body = os.toByteArray();
+            plainXAErrorBodies.set(idx, body);
+        }
+        return body;
+    }
+
+    /**
+     * A reusable buffer for the body of an exception parameter, whose length has to be known before it is written.
+     */
+    static final class EncodeBuffer extends ByteArrayOutputStream {
+        // larger buffers are not kept, so that one huge exception does not pin its buffer forever
+        private static final int MAX_RETAINED = 1 << 16;
+        private static final int INITIAL_SIZE = 512;
+
+        final DataOutputStream data = new DataOutputStream(this);
+
+        EncodeBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        void writeBodyTo(final OutputStream outputStream) throws IOException {
+            writePackedUnsignedInt31(outputStream, count);
+            outputStream.write(buf, 0, count);
+        }
+
+        void release() {
+            reset();
+            if (buf.length > MAX_RETAINED) {
+                buf = new byte[INITIAL_SIZE];
+            }
         }
     }
 
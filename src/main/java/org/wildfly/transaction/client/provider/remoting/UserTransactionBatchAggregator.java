@@ -0,0 +1,226 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.remoting3.ChannelClosedException;
+import org.jboss.remoting3.MessageInputStream;
+import org.jboss.remoting3.MessageOutputStream;
+import org.jboss.remoting3.util.Invocation;
+import org.jboss.remoting3.util.InvocationTracker;
+import org.jboss.remoting3.util.StreamUtils;
+import org.wildfly.common.rpc.RemoteExceptionCause;
+import org.wildfly.transaction.client._private.Log;
+import org.xnio.XnioWorker;
+
+/**
+ * Gathers concurrent commit or rollback requests for user transactions on one channel under the same security
+ * context, and sends them as one batch message once the aggregation window closes or the batch is full.  The outcome
+ * of each transaction is delivered to its own future: normally, or with the exception which the transaction failed
+ * with, or with an {@code IOException} if the batch could not be sent or its response could not be read.  Only used
+ * with peers which acknowledged {@link Protocol#P_CAP_UT_BATCH}.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class UserTransactionBatchAggregator {
+    static final long WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(RemotingProperties.getLong("ut-batch-window-micros", 0L));
+    static final int MAX_SIZE = Math.max(1, RemotingProperties.getInt("ut-batch-max-size", 64));
+
+    private final TransactionClientChannel channel;
+    private final int batchMsgId;
+    private final int batchRespId;
+    private final long windowNanos;
+    private final int maxSize;
+    // protected by {@code this}
+    private final HashMap<Integer, Batch> batches = new HashMap<>();
+
+    UserTransactionBatchAggregator(final TransactionClientChannel channel, final int batchMsgId, final int batchRespId) {
+        this(channel, batchMsgId, batchRespId, WINDOW_NANOS, MAX_SIZE);
+    }
+
+    UserTransactionBatchAggregator(final TransactionClientChannel channel, final int batchMsgId, final int batchRespId, final long windowNanos, final int maxSize) {
+        this.channel = channel;
+        this.batchMsgId = batchMsgId;
+        this.batchRespId = batchRespId;
+        this.windowNanos = windowNanos;
+        this.maxSize = maxSize;
+    }
+
+    CompletableFuture<Void> submit(final int id, final int peerIdentityId) {
+        final Integer key = Integer.valueOf(peerIdentityId);
+        final Entry entry = new Entry(id);
+        final Batch batch;
+        final boolean first;
+        final boolean full;
+        synchronized (this) {
+            Batch existing = batches.get(key);
+            if (existing == null) {
+                batches.put(key, existing = new Batch(peerIdentityId));
+                first = true;
+            } else {
+                first = false;
+            }
+            batch = existing;
+            batch.entries.add(entry);
+            full = batch.entries.size() >= maxSize;
+            if (full) {
+                batches.remove(key);
+            }
+        }
+        if (full) {
+            send(batch);
+        } else if (first) {
+            final XnioWorker worker = channel.getConnection().getEndpoint().getXnioWorker();
+            // the timer fires on an I/O thread; writing the batch may block, so hand it off to the worker
+            worker.getIoThread().executeAfter(() -> worker.execute(() -> flush(key, batch)), windowNanos, TimeUnit.NANOSECONDS);
+        }
+        return entry.future;
+    }
+
+    private void flush(final Integer key, final Batch batch) {
+        synchronized (this) {
+            if (batches.get(key) != batch) {
+                // already sent because it filled up
+                return;
+            }
+            batches.remove(key);
+        }
+        send(batch);
+    }
+
+    private void send(final Batch batch) {
+        final InvocationTracker invocationTracker = channel.getInvocationTracker();
+        final BatchInvocation invocation = invocationTracker.addInvocation(index -> new BatchInvocation(index, batch));
+        // write request
+        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
+            os.writeShort(invocation.getIndex());
+            os.writeByte(batchMsgId);
+            for (Entry entry : batch.entries) {
+                Protocol.writeParam(Protocol.P_TXN_CONTEXT, os, entry.id, Protocol.UNSIGNED);
+            }
+            if (batch.peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, batch.peerIdentityId, Protocol.UNSIGNED);
+        } catch (IOException e) {
+            invocationTracker.remove(invocation);
+            batch.fail(e);
+        }
+    }
+
+    void readBatchResponse(final Batch batch, final MessageInputStream is) throws IOException {
+        final int msgId = is.readUnsignedByte();
+        if (msgId != batchRespId) {
+            batch.fail(Log.log.unknownResponse());
+            return;
+        }
+        final ArrayList<Entry> entries = batch.entries;
+        final int size = entries.size();
+        final Exception[] problems = new Exception[size];
+        int idx = -1;
+        int id;
+        while ((id = is.read()) != -1) {
+            if (id == Protocol.P_TXN_CONTEXT) {
+                final int len = StreamUtils.readPackedUnsignedInt32(is);
+                final int context = Protocol.readIntParam(is, len);
+                if (++ idx == size || context != entries.get(idx).id) {
+                    batch.fail(Log.log.unknownResponse());
+                    return;
+                }
+            } else if (id == Protocol.P_SEC_EXC && idx < 0) {
+                // the whole batch was refused
+                StreamUtils.readPackedUnsignedInt32(is);
+                final SecurityException sx = Log.log.peerSecurityException();
+                sx.initCause(RemoteExceptionCause.readFromStream(is));
+                for (Entry entry : entries) {
+                    entry.future.completeExceptionally(sx);
+                }
+                return;
+            } else if (idx >= 0) {
+                problems[idx] = ResponseDecoder.readUserTransactionFailure(is, id);
+            } else {
+                batch.fail(Log.log.unknownResponse());
+                return;
+            }
+        }
+        for (int i = 0; i < size; i ++) {
+            final CompletableFuture<Void> future = entries.get(i).future;
+            if (i > idx) {
+                // no outcome was reported for this one
+                future.completeExceptionally(Log.log.unknownResponse());
+            } else if (problems[i] != null) {
+                future.completeExceptionally(problems[i]);
+            } else {
+                future.complete(null);
+            }
+        }
+    }
+
+    final class BatchInvocation extends Invocation {
+        private final Batch batch;
+
+        BatchInvocation(final int index, final Batch batch) {
+            super(index);
+            this.batch = batch;
+        }
+
+        public void handleResponse(final int parameter, final MessageInputStream inputStream) {
+            try (MessageInputStream is = inputStream) {
+                readBatchResponse(batch, is);
+            } catch (IOException e) {
+                batch.fail(e);
+            }
+        }
+
+        public void handleClosed() {
+            batch.fail(new ChannelClosedException());
+        }
+
+        public void handleException(final IOException exception) {
+            batch.fail(exception);
+        }
+    }
+
+    static final class Batch {
+        private final int peerIdentityId;
+        private final ArrayList<Entry> entries = new ArrayList<>();
+
+        Batch(final int peerIdentityId) {
+            this.peerIdentityId = peerIdentityId;
+        }
+
+        void fail(final Exception problem) {
+            // entries which already have an outcome keep it
+            for (Entry entry : entries) {
+                entry.future.completeExceptionally(problem);
+            }
+        }
+    }
+
+    static final class Entry {
+        private final int id;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Entry(final int id) {
+            this.id = id;
+        }
+    }
+}
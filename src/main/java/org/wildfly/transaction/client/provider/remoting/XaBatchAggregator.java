@@ -0,0 +1,222 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.jboss.remoting3.ConnectionPeerIdentity;
+import org.jboss.remoting3.MessageInputStream;
+import org.jboss.remoting3.util.StreamUtils;
+import org.wildfly.common.rpc.RemoteExceptionCause;
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client._private.Log;
+import org.xnio.XnioWorker;
+
+/**
+ * Gathers concurrent XA requests of a single type which are bound for the same peer under the same security context,
+ * and sends them as one batch message once the aggregation window closes or the batch is full.  A batch of one is
+ * sent as an ordinary single-XID request.  Only used with peers which acknowledged {@link Protocol#P_CAP_XA_BATCH}.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class XaBatchAggregator {
+    static final long WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(RemotingProperties.getLong("xa-batch-window-micros", 0L));
+    static final int MAX_SIZE = Math.max(1, RemotingProperties.getInt("xa-batch-max-size", 64));
+
+    private final TransactionClientChannel channel;
+    private final int msgId;
+    private final int respId;
+    private final int batchMsgId;
+    private final int batchRespId;
+    private final int failureCode;
+    private final long windowNanos;
+    private final int maxSize;
+    // protected by {@code this}
+    private final HashMap<Long, Batch> batches = new HashMap<>();
+
+    XaBatchAggregator(final TransactionClientChannel channel, final int msgId, final int respId, final int batchMsgId, final int batchRespId, final int failureCode) {
+        this(channel, msgId, respId, batchMsgId, batchRespId, failureCode, WINDOW_NANOS, MAX_SIZE);
+    }
+
+    XaBatchAggregator(final TransactionClientChannel channel, final int msgId, final int respId, final int batchMsgId, final int batchRespId, final int failureCode, final long windowNanos, final int maxSize) {
+        this.channel = channel;
+        this.msgId = msgId;
+        this.respId = respId;
+        this.batchMsgId = batchMsgId;
+        this.batchRespId = batchRespId;
+        this.failureCode = failureCode;
+        this.windowNanos = windowNanos;
+        this.maxSize = maxSize;
+    }
+
+    CompletableFuture<Integer> submit(final Xid xid, final ConnectionPeerIdentity peerIdentity, final boolean onePhase, final int timeout) {
+        final Long key = Long.valueOf((long) peerIdentity.getId() << 1 | (onePhase ? 1 : 0));
+        final Entry entry = new Entry(xid);
+        final Batch batch;
+        final boolean first;
+        final boolean full;
+        synchronized (this) {
+            Batch existing = batches.get(key);
+            if (existing == null) {
+                batches.put(key, existing = new Batch(peerIdentity, onePhase));
+                first = true;
+            } else {
+                first = false;
+            }
+            batch = existing;
+            batch.entries.add(entry);
+            full = batch.entries.size() >= maxSize;
+            if (full) {
+                batches.remove(key);
+            }
+        }
+        if (full) {
+            send(batch);
+        } else if (first) {
+            final XnioWorker worker = channel.getConnection().getEndpoint().getXnioWorker();
+            // the timer fires on an I/O thread; writing the batch may block, so hand it off to the worker
+            worker.getIoThread().executeAfter(() -> worker.execute(() -> flush(key, batch)), windowNanos, TimeUnit.NANOSECONDS);
+        }
+        if (timeout > 0) {
+            // batches carry no timeout of their own; just stop waiting for this entry's outcome
+            channel.expireAfter(entry.future, timeout, null);
+        }
+        return entry.future;
+    }
+
+    private void flush(final Long key, final Batch batch) {
+        synchronized (this) {
+            if (batches.get(key) != batch) {
+                // already sent because it filled up
+                return;
+            }
+            batches.remove(key);
+        }
+        send(batch);
+    }
+
+    private void send(final Batch batch) {
+        final ArrayList<Entry> entries = batch.entries;
+        if (entries.size() == 1) {
+            sendIndividually(batch);
+            return;
+        }
+        final ArrayList<Xid> xids = new ArrayList<>(entries.size());
+        final ArrayList<CompletableFuture<Integer>> outcomes = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            xids.add(entry.xid);
+            outcomes.add(entry.future);
+        }
+        channel.invokeXaBatch(batchMsgId, xids, outcomes, batch.peerIdentity, batch.onePhase, is -> readBatchResponse(batch, is), failureCode).whenComplete((ignored, problem) -> {
+            if (problem != null) for (Entry entry : entries) {
+                entry.future.completeExceptionally(problem);
+            }
+        });
+    }
+
+    private void sendIndividually(final Batch batch) {
+        for (Entry entry : batch.entries) {
+            channel.invokeXa(msgId, entry.xid, batch.peerIdentity, batch.onePhase, ResponseDecoder.outcomeOf(respId), failureCode, 0).whenComplete((result, problem) -> {
+                if (problem != null) {
+                    entry.future.completeExceptionally(problem);
+                } else {
+                    entry.future.complete(result);
+                }
+            });
+        }
+    }
+
+    private Void readBatchResponse(final Batch batch, final MessageInputStream is) throws XAException, IOException {
+        if (is.readUnsignedByte() != batchRespId) {
+            throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
+        }
+        final ArrayList<Entry> entries = batch.entries;
+        final int size = entries.size();
+        final int[] results = new int[size];
+        final Exception[] problems = new Exception[size];
+        int idx = -1;
+        int id;
+        while ((id = is.read()) != -1) {
+            final int len = StreamUtils.readPackedUnsignedInt32(is);
+            if (id == Protocol.P_XID) {
+                final SimpleXid xid = Protocol.readXid(is, len);
+                if (++ idx == size || ! xid.equals(SimpleXid.of(entries.get(idx).xid))) {
+                    throw Log.log.protocolErrorXA(XAException.XAER_RMFAIL);
+                }
+                results[idx] = XAResource.XA_OK;
+            } else if (id == Protocol.P_XA_RDONLY && idx >= 0 && batchRespId == Protocol.M_RESP_XA_BATCH_PREPARE) {
+                results[idx] = XAResource.XA_RDONLY;
+            } else if (id == Protocol.P_XA_ERROR && idx >= 0) {
+                final XAException xa = Log.log.peerXaException(is.readInt());
+                xa.initCause(RemoteExceptionCause.readFromStream(is));
+                problems[idx] = xa;
+            } else if (id == Protocol.P_SEC_EXC) {
+                final SecurityException sx = Log.log.peerSecurityException();
+                sx.initCause(RemoteExceptionCause.readFromStream(is));
+                if (idx < 0) {
+                    // the whole batch was refused
+                    throw sx;
+                }
+                problems[idx] = sx;
+            } else {
+                throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+            }
+        }
+        for (int i = 0; i < size; i ++) {
+            final CompletableFuture<Integer> future = entries.get(i).future;
+            if (i > idx) {
+                // no outcome was reported for this one
+                future.completeExceptionally(Log.log.protocolErrorXA(XAException.XAER_RMFAIL));
+            } else if (problems[i] != null) {
+                future.completeExceptionally(problems[i]);
+            } else {
+                future.complete(Integer.valueOf(results[i]));
+            }
+        }
+        return null;
+    }
+
+    static final class Batch {
+        private final ConnectionPeerIdentity peerIdentity;
+        private final boolean onePhase;
+        private final ArrayList<Entry> entries = new ArrayList<>();
+
+        Batch(final ConnectionPeerIdentity peerIdentity, final boolean onePhase) {
+            this.peerIdentity = peerIdentity;
+            this.onePhase = onePhase;
+        }
+    }
+
+    static final class Entry {
+        private final Xid xid;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        Entry(final Xid xid) {
+            this.xid = xid;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.transaction.xa.Xid;
+
+import org.wildfly.transaction.client.SimpleXid;
+
+/**
+ * The client side of the per-channel XID handle dictionary.  A handle is assigned to an XID on first use and is sent
+ * along with the full XID until the peer has answered a request carrying both, after which the handle alone
+ * identifies the XID.  Handles are given up once the transaction branch is complete and no request which uses them is
+ * outstanding, or, when every handle is taken, if they have been idle the longest; their completion may not have been
+ * seen on this channel.  A handle which was given up is announced to the peer so that it can drop the XID, and is only
+ * assigned again once a request carrying the announcement has been answered.  If no handle is available, requests
+ * simply carry the full XID.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class XidHandleTable {
+    static final int MAX_SIZE = Math.max(0, Math.min(Protocol.MAX_XID_HANDLES, RemotingProperties.getInt("xid-handle-max", 4096)));
+
+    // the most handles announced by one request
+    static final int MAX_ANNOUNCED = 64;
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final int maxSize;
+    // all protected by {@code this}
+    // in access order, so that the handle idle for the longest comes first
+    private final LinkedHashMap<SimpleXid, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    // given up, but not yet announced to the peer
+    private final IntList unannounced = new IntList();
+    // announced to the peer, and free to be assigned again
+    private final IntList free = new IntList();
+    private int announcing;
+    private int nextId;
+
+    XidHandleTable() {
+        this(MAX_SIZE);
+    }
+
+    XidHandleTable(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Acquire the handle of the given XID for one request, assigning one if needed.
+     *
+     * @param xid the XID
+     * @return the handle, or {@code null} if the table is full
+     */
+    synchronized Handle acquire(final Xid xid) {
+        final SimpleXid simpleXid = SimpleXid.of(xid);
+        Handle handle = handles.get(simpleXid);
+        if (handle == null) {
+            final int id;
+            if (free.size() > 0) {
+                id = free.pop();
+            } else if (nextId < maxSize) {
+                id = nextId ++;
+            } else {
+                if (unannounced.size() == 0 && announcing == 0) {
+                    // make room for a later request
+                    evictIdle();
+                }
+                return null;
+            }
+            handles.put(simpleXid, handle = new Handle(simpleXid, id));
+        }
+        handle.refs ++;
+        return handle;
+    }
+
+    private void evictIdle() {
+        final Iterator<Handle> iterator = handles.values().iterator();
+        while (iterator.hasNext()) {
+            final Handle handle = iterator.next();
+            if (handle.refs == 0) {
+                iterator.remove();
+                unannounced.push(handle.id);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Release a handle acquired for a request which has finished.
+     *
+     * @param handle the handle
+     * @param answered {@code true} if the peer has answered the request, which means that it knows the handle
+     * @param complete {@code true} if the transaction branch is complete and the XID will not be used again
+     */
+    synchronized void release(final Handle handle, final boolean answered, final boolean complete) {
+        if (answered) {
+            handle.bound = true;
+        }
+        if (complete) {
+            handle.complete = true;
+        }
+        if (-- handle.refs == 0 && handle.complete) {
+            remove(handle);
+        }
+    }
+
+    /**
+     * Note that the transaction branch of the given XID is complete, having been completed by a request which did not
+     * use its handle.
+     *
+     * @param xid the XID
+     */
+    synchronized void complete(final Xid xid) {
+        final Handle handle = handles.get(SimpleXid.of(xid));
+        if (handle != null) {
+            handle.complete = true;
+            if (handle.refs == 0) {
+                remove(handle);
+            }
+        }
+    }
+
+    private void remove(final Handle handle) {
+        handles.remove(handle.xid);
+        unannounced.push(handle.id);
+    }
+
+    /**
+     * Take the handles to be announced by a request.  The request must pass them to {@link #announced(int[], boolean)}
+     * once it has finished.
+     *
+     * @return the handles, which may be empty
+     */
+    synchronized int[] takeUnannounced() {
+        final int cnt = Math.min(MAX_ANNOUNCED, unannounced.size());
+        if (cnt == 0) {
+            return NO_IDS;
+        }
+        final int[] ids = new int[cnt];
+        for (int i = 0; i < cnt; i ++) {
+            ids[i] = unannounced.pop();
+        }
+        announcing += cnt;
+        return ids;
+    }
+
+    /**
+     * Note that a request which announced the given handles has finished.
+     *
+     * @param ids the handles taken by the request
+     * @param answered {@code true} if the peer has answered the request, which means that it has dropped the handles
+     */
+    synchronized void announced(final int[] ids, final boolean answered) {
+        if (ids.length == 0) {
+            return;
+        }
+        announcing -= ids.length;
+        final IntList target = answered ? free : unannounced;
+        for (int id : ids) {
+            target.push(id);
+        }
+    }
+
+    static final class Handle {
+        private final SimpleXid xid;
+        private final int id;
+        // protected by the table
+        private int refs;
+        private boolean complete;
+        private volatile boolean bound;
+
+        Handle(final SimpleXid xid, final int id) {
+            this.xid = xid;
+            this.id = id;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        boolean isBound() {
+            return bound;
+        }
+    }
+
+    static final class IntList {
+        private int[] items = new int[16];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void push(final int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size << 1);
+            }
+            items[size ++] = item;
+        }
+
+        int pop() {
+            return items[-- size];
+        }
+    }
+}
@@ -41,6 +41,22 @@ public interface RemoteTransactionPeer {
     @NotNull
     SubordinateTransactionControl lookupXid(Xid xid) throws XAException;
 
+    /**
+     * Look up an outflow handle for a remote transaction with the given XID, whose operations should not wait for
+     * the peer much longer than the transaction has left to run.  The default implementation ignores the remaining
+     * time and calls {@link #lookupXid(Xid)}.
+     *
+     * @param xid the transaction ID
+     * @param remainingMillis the estimated remaining time of the transaction in milliseconds, zero or less if it has
+     *      run out
+     * @return the handle for the remote transaction
+     * @throws XAException if the lookup failed for some reason
+     */
+    @NotNull
+    default SubordinateTransactionControl lookupXid(Xid xid, long remainingMillis) throws XAException {
+        return lookupXid(xid);
+    }
+
     /**
      * Acquire a list of all unresolved subordinate transactions from the location associated with this provider.
      *
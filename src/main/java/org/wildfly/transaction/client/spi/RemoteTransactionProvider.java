@@ -70,4 +70,16 @@ public interface RemoteTransactionProvider extends TransactionProvider {
      * @return {@code true} if the scheme is supported, {@code false} otherwise
      */
     boolean supportsScheme(String scheme);
+
+    /**
+     * Get the object that the provider's set of supported schemes currently depends on.  For as long as this method
+     * returns the same object, the results of {@link #supportsScheme(String)} may be cached by the caller.  A scheme
+     * is only cached for a provider if all of the providers before it return the same object.
+     *
+     * @return the object identifying the current set of supported schemes, or {@code null} if the results of
+     *      {@link #supportsScheme(String)} must not be cached
+     */
+    default Object getSchemeSupportKey() {
+        return null;
+    }
 }
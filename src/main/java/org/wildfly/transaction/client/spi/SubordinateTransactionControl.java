@@ -125,6 +125,30 @@ public interface SubordinateTransactionControl {
      */
     int prepare() throws XAException;
 
+    /**
+     * Perform before-commit operations and then prepare the transaction.  Subordinates which can do both in a single
+     * operation should override this method along with {@link #isBeforeCompletionDeferrable()}.  The possible error
+     * codes are those of {@link #beforeCompletion()} and {@link #prepare()}.
+     *
+     * @return {@link XAResource#XA_OK} or {@link XAResource#XA_RDONLY}
+     * @throws XAException (with one of the above error codes) if an error occurs
+     */
+    default int beforeCompletionAndPrepare() throws XAException {
+        beforeCompletion();
+        return prepare();
+    }
+
+    /**
+     * Determine whether this subordinate would rather have before-commit operations deferred until
+     * {@link #beforeCompletionAndPrepare()} (or a one-phase {@link #commit(boolean) commit}) instead of being run
+     * on their own.
+     *
+     * @return {@code true} if before-commit operations may be deferred, {@code false} otherwise
+     */
+    default boolean isBeforeCompletionDeferrable() {
+        return false;
+    }
+
     /**
      * Forget the (previously prepared) transaction.  In the event of error, the following error codes are possible:
      * <ul>
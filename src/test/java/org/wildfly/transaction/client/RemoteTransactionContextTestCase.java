@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Test;
+import org.wildfly.common.Assert;
+import org.wildfly.security.auth.client.AuthenticationConfiguration;
+import org.wildfly.transaction.client.spi.RemoteTransactionPeer;
+import org.wildfly.transaction.client.spi.RemoteTransactionProvider;
+
+/**
+ * Tests for the resolution of providers by URI scheme.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class RemoteTransactionContextTestCase {
+
+    @Test
+    public void testCachedSchemeCostsOneKeyLookup() {
+        final Object key = new Object();
+        final TestProvider first = new TestProvider("a", key);
+        final TestProvider second = new TestProvider("b", key);
+        final RemoteTransactionContext context = new RemoteTransactionContext(Arrays.asList(first, second));
+        final URI location = URI.create("b://host");
+        assertSame(second, context.getProvider(location));
+        first.keyLookups = second.keyLookups = 0;
+        first.schemeLookups = second.schemeLookups = 0;
+        assertSame(second, context.getProvider(location));
+        assertEquals(0, first.keyLookups + first.schemeLookups + second.schemeLookups);
+        assertEquals(1, second.keyLookups);
+    }
+
+    @Test
+    public void testChangedKeyResolvesAgain() {
+        final TestProvider first = new TestProvider("a", new Object());
+        final RemoteTransactionContext context = new RemoteTransactionContext(Arrays.asList(first));
+        final URI location = URI.create("a://host");
+        assertSame(first, context.getProvider(location));
+        first.key = new Object();
+        first.schemeLookups = 0;
+        assertSame(first, context.getProvider(location));
+        assertEquals(1, first.schemeLookups);
+    }
+
+    @Test
+    public void testUnsharedKeysAreNotCached() {
+        // the first provider could start to support the scheme without the second one's key changing
+        final TestProvider first = new TestProvider("a", new Object());
+        final TestProvider second = new TestProvider("b", new Object());
+        final RemoteTransactionContext context = new RemoteTransactionContext(Arrays.asList(first, second));
+        final URI location = URI.create("b://host");
+        assertSame(second, context.getProvider(location));
+        first.scheme = "b";
+        assertSame(first, context.getProvider(location));
+    }
+
+    static final class TestProvider implements RemoteTransactionProvider {
+        String scheme;
+        Object key;
+        int keyLookups;
+        int schemeLookups;
+
+        TestProvider(final String scheme, final Object key) {
+            this.scheme = scheme;
+            this.key = key;
+        }
+
+        public RemoteTransactionPeer getPeerHandle(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration) {
+            throw Assert.unsupported();
+        }
+
+        public boolean supportsScheme(final String scheme) {
+            schemeLookups ++;
+            return this.scheme.equals(scheme);
+        }
+
+        public Object getSchemeSupportKey() {
+            keyLookups ++;
+            return key;
+        }
+    }
+}
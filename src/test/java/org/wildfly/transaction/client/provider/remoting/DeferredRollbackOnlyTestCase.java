@@ -0,0 +1,127 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.remoting3.Channel;
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.MessageInputStream;
+import org.jboss.remoting3.MessageOutputStream;
+import org.jboss.remoting3.OpenListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wildfly.transaction.client.SimpleXid;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+
+/**
+ * Tests for rollback-only marks which are held back for a following request.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class DeferredRollbackOnlyTestCase {
+    private final BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+    private LoopbackEndpoint loopback;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws IOException {
+        loopback = new LoopbackEndpoint();
+        // a peer which only understands rollback-only marks carried on other requests
+        loopback.getEndpoint().registerService("txn", new OpenListener() {
+            public void channelOpened(final Channel channel) {
+                channel.receiveMessage(new RecordingReceiver());
+            }
+
+            public void registrationTerminated() {
+            }
+        }, OptionMap.EMPTY);
+        connection = loopback.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IoUtils.safeClose(connection);
+        IoUtils.safeClose(loopback);
+    }
+
+    @Test
+    public void testMarkIsFlushedByTimer() throws Exception {
+        final TransactionClientChannel clientChannel = TransactionClientChannel.forConnection(connection);
+        final SimpleXid xid = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+        clientChannel.deferRollbackOnly(xid, connection.getConnectionPeerIdentity(), 1);
+        // held back while a request might still carry it...
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+        // ...and sent by itself once no request did
+        final Integer msgId = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Rollback-only mark was never sent", msgId);
+        assertEquals(Protocol.M_XA_RB_ONLY, msgId.intValue());
+    }
+
+    final class RecordingReceiver implements Channel.Receiver {
+        public void handleMessage(final Channel channel, final MessageInputStream message) {
+            channel.receiveMessage(this);
+            final int invId;
+            final int msgId;
+            try (MessageInputStream is = message) {
+                invId = is.readUnsignedShort();
+                msgId = is.readUnsignedByte();
+                while (is.read() != -1) {
+                    // discard the parameters
+                }
+            } catch (IOException e) {
+                IoUtils.safeClose(channel);
+                return;
+            }
+            if (msgId == Protocol.M_CAPABILITY) {
+                reply(channel, invId, Protocol.M_RESP_CAPABILITY, Protocol.P_CAP_XA_RB_ONLY_PARAM);
+                return;
+            }
+            if (msgId == Protocol.M_XA_RB_ONLY && invId != Protocol.ONE_WAY_INV_ID) {
+                reply(channel, invId, Protocol.M_RESP_XA_RB_ONLY, -1);
+            }
+            received.add(Integer.valueOf(msgId));
+        }
+
+        public void handleError(final Channel channel, final IOException error) {
+        }
+
+        public void handleEnd(final Channel channel) {
+        }
+
+        private void reply(final Channel channel, final int invId, final int msgId, final int param) {
+            try (MessageOutputStream os = channel.writeMessage()) {
+                os.writeShort(invId);
+                os.writeByte(msgId);
+                if (param != -1) Protocol.writeParam(param, os);
+            } catch (IOException e) {
+                IoUtils.safeClose(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the placement of transactions on the idle transaction reaper's timer wheel, driven a tick at a time.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class IdleTransactionReaperTestCase {
+    private static final long TICK = IdleTransactionReaper.TICK_NANOS;
+    private static final int WHEEL_SIZE = IdleTransactionReaper.WHEEL_SIZE;
+
+    private IdleTransactionReaper reaper;
+    private int nextId = 1;
+
+    @Before
+    public void setUp() {
+        assumeTrue("The reaper is disabled", IdleTransactionReaper.isEnabled());
+        // never started, so nothing but the wheel is used
+        reaper = new IdleTransactionReaper(null, null);
+    }
+
+    @Test
+    public void testDueAfterItsTicks() {
+        // on either side of whole trips around the wheel
+        final long[] ticks = { 1, 2, WHEEL_SIZE - 1, WHEEL_SIZE, WHEEL_SIZE + 1, 2 * WHEEL_SIZE, 3 * WHEEL_SIZE + 7 };
+        final Map<RemotingTransactionServer.LocalTxn, Long> dueAt = new HashMap<>();
+        for (long t : ticks) {
+            dueAt.put(add(t * TICK), Long.valueOf(t));
+        }
+        assertEquals(dueAt, runUntilEmpty());
+    }
+
+    @Test
+    public void testDueAfterItsTicksFromLaterCursor() {
+        // move the cursor near the end of the wheel, so that slots wrap around
+        add((WHEEL_SIZE - 3) * TICK);
+        final Map<RemotingTransactionServer.LocalTxn, Long> dueAt = new HashMap<>();
+        for (int i = 0; i < WHEEL_SIZE - 5; i ++) {
+            assertTrue(reaper.advance(new ArrayList<>()));
+        }
+        for (long t : new long[] { 1, 5, WHEEL_SIZE, WHEEL_SIZE + 4 }) {
+            dueAt.put(add(t * TICK), Long.valueOf(t));
+        }
+        final Map<RemotingTransactionServer.LocalTxn, Long> actual = runUntilEmpty();
+        assertEquals(1, actual.values().stream().filter(t -> t.longValue() == 2L).count());
+        actual.values().removeIf(t -> t.longValue() == 2L);
+        assertEquals(dueAt, actual);
+    }
+
+    @Test
+    public void testPartialTickRoundsUp() {
+        final Map<RemotingTransactionServer.LocalTxn, Long> dueAt = new HashMap<>();
+        dueAt.put(add(0L), Long.valueOf(1L));
+        dueAt.put(add(TICK - 1), Long.valueOf(1L));
+        dueAt.put(add(TICK + 1), Long.valueOf(2L));
+        dueAt.put(add(WHEEL_SIZE * TICK + 1), Long.valueOf(WHEEL_SIZE + 1));
+        assertEquals(dueAt, runUntilEmpty());
+    }
+
+    @Test
+    public void testUntrackedNeverComesDue() {
+        final RemotingTransactionServer.LocalTxn kept = add(3 * TICK);
+        final RemotingTransactionServer.LocalTxn removed = add(3 * TICK);
+        final RemotingTransactionServer.LocalTxn last = add((WHEEL_SIZE + 3) * TICK);
+        reaper.untrack(removed);
+        assertNull(removed.reaperEntry);
+        final Map<RemotingTransactionServer.LocalTxn, Long> dueAt = runUntilEmpty();
+        assertEquals(2, dueAt.size());
+        assertEquals(Long.valueOf(3L), dueAt.get(kept));
+        assertEquals(Long.valueOf(WHEEL_SIZE + 3), dueAt.get(last));
+    }
+
+    @Test
+    public void testOnlyFirstAddStartsWheel() {
+        assertTrue(reaper.add(null, new RemotingTransactionServer.LocalTxn(nextId ++, null), TICK));
+        assertFalse(reaper.add(null, new RemotingTransactionServer.LocalTxn(nextId ++, null), TICK));
+        final ArrayList<IdleTransactionReaper.Entry> due = new ArrayList<>();
+        // the wheel stops once it is empty, and the next add starts it again
+        assertFalse(reaper.advance(due));
+        assertEquals(2, due.size());
+        final RemotingTransactionServer.LocalTxn txn = new RemotingTransactionServer.LocalTxn(nextId ++, null);
+        assertTrue(reaper.add(null, txn, TICK));
+        due.clear();
+        assertFalse(reaper.advance(due));
+        assertSame(txn, due.get(0).getTxn());
+        assertNull(txn.reaperEntry);
+    }
+
+    private RemotingTransactionServer.LocalTxn add(final long delay) {
+        final RemotingTransactionServer.LocalTxn txn = new RemotingTransactionServer.LocalTxn(nextId ++, null);
+        reaper.add(null, txn, delay);
+        return txn;
+    }
+
+    private Map<RemotingTransactionServer.LocalTxn, Long> runUntilEmpty() {
+        final Map<RemotingTransactionServer.LocalTxn, Long> dueAt = new HashMap<>();
+        final ArrayList<IdleTransactionReaper.Entry> due = new ArrayList<>();
+        boolean more = true;
+        for (long tick = 1; more; tick ++) {
+            assertTrue("The wheel never emptied", tick <= 8L * WHEEL_SIZE);
+            due.clear();
+            more = reaper.advance(due);
+            for (IdleTransactionReaper.Entry entry : due) {
+                assertNull(dueAt.put(entry.getTxn(), Long.valueOf(tick)));
+            }
+        }
+        return dueAt;
+    }
+}
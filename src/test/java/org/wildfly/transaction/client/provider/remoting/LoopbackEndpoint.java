@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.jboss.remoting3.Channel;
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.Endpoint;
+import org.jboss.remoting3.OpenListener;
+import org.jboss.remoting3.spi.NetworkServerProvider;
+import org.wildfly.security.auth.client.AuthenticationConfiguration;
+import org.wildfly.security.auth.client.AuthenticationContext;
+import org.wildfly.security.auth.client.MatchRule;
+import org.wildfly.security.auth.server.MechanismConfiguration;
+import org.wildfly.security.auth.server.MechanismConfigurationSelector;
+import org.wildfly.security.auth.server.SaslAuthenticationFactory;
+import org.wildfly.security.auth.server.SecurityDomain;
+import org.wildfly.security.auth.server.SecurityRealm;
+import org.wildfly.security.permission.PermissionVerifier;
+import org.wildfly.security.sasl.SaslMechanismSelector;
+import org.wildfly.security.sasl.anonymous.AnonymousServerFactory;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Sequence;
+import org.xnio.StreamConnection;
+import org.xnio.channels.AcceptingChannel;
+
+/**
+ * An endpoint which accepts anonymous connections on the loopback interface, and connects to itself.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class LoopbackEndpoint implements Closeable {
+    private final Endpoint endpoint;
+    private final AcceptingChannel<StreamConnection> server;
+    private final BlockingQueue<Connection> accepted = new LinkedBlockingQueue<>();
+
+    LoopbackEndpoint() throws IOException {
+        endpoint = Endpoint.builder().setEndpointName("test").build();
+        final SecurityDomain.Builder domainBuilder = SecurityDomain.builder();
+        domainBuilder.addRealm("default", SecurityRealm.EMPTY_REALM).build();
+        domainBuilder.setDefaultRealmName("default");
+        domainBuilder.setPermissionMapper((permissionMappable, roles) -> PermissionVerifier.ALL);
+        final SaslAuthenticationFactory authenticationFactory = SaslAuthenticationFactory.builder()
+            .setSecurityDomain(domainBuilder.build())
+            .setFactory(new AnonymousServerFactory())
+            .setMechanismConfigurationSelector(MechanismConfigurationSelector.constantSelector(MechanismConfiguration.EMPTY))
+            .build();
+        final NetworkServerProvider provider = endpoint.getConnectionProviderInterface("remote", NetworkServerProvider.class);
+        server = provider.createServer(new InetSocketAddress("127.0.0.1", 0), OptionMap.create(Options.SASL_MECHANISMS, Sequence.of("ANONYMOUS")), authenticationFactory, null);
+        // lets tests find the accepting side of a connection
+        endpoint.registerService("test-accept", new OpenListener() {
+            public void channelOpened(final Channel channel) {
+                accepted.add(channel.getConnection());
+                channel.closeAsync();
+            }
+
+            public void registrationTerminated() {
+            }
+        }, OptionMap.EMPTY);
+    }
+
+    Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Get the URI which connects to this endpoint.
+     *
+     * @return the URI
+     */
+    URI getLocation() {
+        final InetSocketAddress address = server.getLocalAddress(InetSocketAddress.class);
+        try {
+            return new URI("remote", null, address.getHostString(), address.getPort(), null, null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the configuration which authenticates to this endpoint.
+     *
+     * @return the configuration
+     */
+    static AuthenticationConfiguration getAuthenticationConfiguration() {
+        return AuthenticationConfiguration.empty().useAnonymous().setSaslMechanismSelector(SaslMechanismSelector.NONE.addMechanism("ANONYMOUS"));
+    }
+
+    /**
+     * Open a new connection to this endpoint.
+     *
+     * @return the connecting side of the new connection
+     * @throws IOException if the connection failed
+     */
+    Connection connect() throws IOException {
+        final AuthenticationContext context = AuthenticationContext.empty().with(MatchRule.ALL, getAuthenticationConfiguration());
+        return endpoint.connect(getLocation(), OptionMap.EMPTY, context).get();
+    }
+
+    /**
+     * Get the accepting side of a connection made by {@link #connect()}.
+     *
+     * @param connection the connecting side
+     * @return the accepting side
+     * @throws IOException if the peer could not be reached
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    Connection getAcceptedConnection(final Connection connection) throws IOException, InterruptedException {
+        accepted.clear();
+        connection.openChannel("test-accept", OptionMap.EMPTY).get();
+        return accepted.take();
+    }
+
+    public void close() throws IOException {
+        IoUtils.safeClose(server);
+        endpoint.close();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+
+import org.junit.Test;
+
+/**
+ * Tests for the state transitions of the per-peer circuit breaker.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class PeerGuardTestCase {
+    private static final URI LOCATION = URI.create("remote://peer");
+
+    @Test
+    public void testOpensAfterConsecutiveTransportFailures() throws Exception {
+        final PeerGuard guard = new PeerGuard(LOCATION, 0, 2, TimeUnit.HOURS.toNanos(1));
+        guard.release(guard.acquire(), transportFailure());
+        guard.release(guard.acquire(), null);
+        // the success started the count again
+        guard.release(guard.acquire(), transportFailure());
+        // one short of the threshold
+        final boolean last = guard.acquire();
+        assertFalse(last);
+        guard.release(last, transportFailure());
+        assertRefuses(guard);
+    }
+
+    @Test
+    public void testPeerErrorsDoNotCount() throws Exception {
+        final PeerGuard guard = new PeerGuard(LOCATION, 0, 1, TimeUnit.HOURS.toNanos(1));
+        guard.release(guard.acquire(), new XAException(XAException.XAER_NOTA));
+        guard.release(guard.acquire(), new XAException(XAException.XAER_RMFAIL));
+        assertAdmits(guard);
+        assertTrue(guard.isIdle());
+    }
+
+    @Test
+    public void testProbeClosesAfterPause() throws Exception {
+        final PeerGuard guard = new PeerGuard(LOCATION, 0, 1, 0L);
+        guard.release(guard.acquire(), transportFailure());
+        assertFalse(guard.isIdle());
+        final boolean probe = guard.acquire();
+        assertTrue(probe);
+        // only one request is let through until the probe comes back
+        assertRefuses(guard);
+        guard.release(probe, null);
+        assertFalse(guard.acquire());
+        assertTrue(guard.isIdle());
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws Exception {
+        final PeerGuard guard = new PeerGuard(LOCATION, 0, 1, 0L);
+        guard.release(guard.acquire(), transportFailure());
+        final boolean probe = guard.acquire();
+        assertTrue(probe);
+        guard.release(probe, transportFailure());
+        // open again, so the next request is a new probe
+        assertTrue(guard.acquire());
+    }
+
+    @Test
+    public void testEarlierRequestDoesNotDecideForProbe() throws Exception {
+        final PeerGuard guard = new PeerGuard(LOCATION, 0, 1, 0L);
+        // let in while the peer was still thought to be reachable
+        final boolean early1 = guard.acquire();
+        final boolean early2 = guard.acquire();
+        assertFalse(early1 || early2);
+        guard.release(guard.acquire(), transportFailure());
+        final boolean probe = guard.acquire();
+        assertTrue(probe);
+        guard.release(early1, null);
+        assertRefuses(guard);
+        guard.release(early2, transportFailure());
+        assertRefuses(guard);
+        guard.release(probe, null);
+        assertFalse(guard.acquire());
+    }
+
+    @Test
+    public void testBulkheadTracksRequestsInFlight() throws Exception {
+        final PeerGuard guard = new PeerGuard(LOCATION, 2, 0, 0L);
+        final boolean first = guard.acquire();
+        assertFalse(guard.isIdle());
+        guard.release(first, transportFailure());
+        // the breaker is off, so failures are not counted
+        assertTrue(guard.isIdle());
+    }
+
+    private static XAException transportFailure() {
+        final XAException e = new XAException(XAException.XAER_RMFAIL);
+        e.initCause(new IOException("Connection lost"));
+        return e;
+    }
+
+    private static void assertAdmits(final PeerGuard guard) throws XAException {
+        guard.release(guard.acquire(), null);
+    }
+
+    private static void assertRefuses(final PeerGuard guard) {
+        try {
+            guard.acquire();
+        } catch (XAException e) {
+            assertEquals(XAException.XAER_RMFAIL, e.errorCode);
+            return;
+        }
+        fail("Request was let through");
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.Test;
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client.XARecoverable;
+
+/**
+ * Tests for the paging of server-side recovery scans.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class RecoveryCursorTestCase {
+
+    @Test
+    public void testPagesAcrossBatches() throws Exception {
+        final TestRecoverable recoverable = new TestRecoverable(xids(0, 3), xids(3, 2), SimpleXid.NO_XIDS);
+        final RecoveryCursor cursor = RecoveryCursor.open(recoverable, "node");
+        final Xid[] page = new Xid[2];
+        final List<Xid> seen = new ArrayList<>();
+        do {
+            final int cnt = cursor.nextPage(page);
+            assertTrue(cnt > 0);
+            seen.addAll(Arrays.asList(page).subList(0, cnt));
+        } while (cursor.hasNext());
+        assertEquals(Arrays.asList(xids(0, 5)), seen);
+        assertEquals(Arrays.asList(XAResource.TMSTARTRSCAN, XAResource.TMNOFLAGS, XAResource.TMNOFLAGS, XAResource.TMENDRSCAN), recoverable.flags);
+    }
+
+    @Test
+    public void testRepeatedBatchEndsScan() throws Exception {
+        // a transaction manager which returns everything again when asked to continue
+        final Xid[] all = xids(0, 3);
+        final TestRecoverable recoverable = new TestRecoverable(all, all, all, all);
+        final RecoveryCursor cursor = RecoveryCursor.open(recoverable, "node");
+        final Xid[] page = new Xid[10];
+        assertEquals(3, cursor.nextPage(page));
+        assertFalse(cursor.hasNext());
+        assertEquals(Arrays.asList(XAResource.TMSTARTRSCAN, XAResource.TMNOFLAGS, XAResource.TMENDRSCAN), recoverable.flags);
+    }
+
+    @Test
+    public void testBranchesOfOneTransactionReportedOnce() throws Exception {
+        final Xid first = new SimpleXid(0x1234, new byte[] { 1 }, new byte[] { 1 });
+        final Xid second = new SimpleXid(0x1234, new byte[] { 1 }, new byte[] { 2 });
+        final RecoveryCursor cursor = RecoveryCursor.open(new TestRecoverable(new Xid[] { first, second }), "node");
+        final Xid[] page = new Xid[10];
+        assertEquals(1, cursor.nextPage(page));
+        assertEquals(first, page[0]);
+    }
+
+    @Test
+    public void testCloseEndsScanOnce() throws Exception {
+        final TestRecoverable recoverable = new TestRecoverable(xids(0, 3));
+        final RecoveryCursor cursor = RecoveryCursor.open(recoverable, "node");
+        cursor.close();
+        cursor.close();
+        assertFalse(cursor.hasNext());
+        assertEquals(Arrays.asList(XAResource.TMSTARTRSCAN, XAResource.TMENDRSCAN), recoverable.flags);
+    }
+
+    @Test
+    public void testIdleTimeIsRenewedByUse() throws Exception {
+        final RecoveryCursor cursor = RecoveryCursor.open(new TestRecoverable(xids(0, 3)), "node", TimeUnit.MILLISECONDS.toNanos(50L));
+        assertTrue(cursor.getIdleRemaining() > 0L);
+        Thread.sleep(100L);
+        assertEquals(0L, cursor.getIdleRemaining());
+        cursor.nextPage(new Xid[1]);
+        assertTrue(cursor.getIdleRemaining() > 0L);
+    }
+
+    private static Xid[] xids(final int from, final int count) {
+        final Xid[] xids = new Xid[count];
+        for (int i = 0; i < count; i ++) {
+            xids[i] = new SimpleXid(0x1234, new byte[] { (byte) (from + i) }, new byte[] { 1 });
+        }
+        return xids;
+    }
+
+    static final class TestRecoverable implements XARecoverable {
+        private final Xid[][] batches;
+        private int next;
+        final List<Integer> flags = new ArrayList<>();
+
+        TestRecoverable(final Xid[]... batches) {
+            this.batches = batches;
+        }
+
+        public Xid[] recover(final int flag, final String parentName) {
+            flags.add(Integer.valueOf(flag));
+            if (flag == XAResource.TMENDRSCAN || next == batches.length) {
+                return SimpleXid.NO_XIDS;
+            }
+            return batches[next ++];
+        }
+
+        public void commit(final Xid xid, final boolean onePhase) throws XAException {
+            throw new XAException(XAException.XAER_NOTA);
+        }
+
+        public void forget(final Xid xid) throws XAException {
+            throw new XAException(XAException.XAER_NOTA);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.Registration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.wildfly.transaction.client.SimpleXid;
+import org.xnio.IoUtils;
+
+/**
+ * Tests for the client side of remote XA requests.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class RemotingRemoteTransactionPeerTestCase {
+    private static final SimpleXid XID = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+
+    private LoopbackEndpoint loopback;
+    private Registration registration;
+    private final AtomicInteger closes = new AtomicInteger();
+    private final TestTransactionProvider provider = new TestTransactionProvider();
+    private RemotingRemoteTransactionPeer peer;
+
+    @Before
+    public void setUp() throws IOException {
+        loopback = new LoopbackEndpoint();
+        registration = RemotingTransactionService.builder()
+            .setEndpoint(loopback.getEndpoint())
+            .setTransactionContext(new LocalTransactionContext(provider))
+            .build()
+            .register();
+        peer = new RemotingRemoteTransactionPeer(loopback.getLocation(), null, LoopbackEndpoint.getAuthenticationConfiguration(), loopback.getEndpoint(), null, closes::incrementAndGet, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IoUtils.safeClose(registration);
+        IoUtils.safeClose(loopback);
+    }
+
+    @Test
+    public void testClosedConnectionIsReported() throws Exception {
+        final Connection connection = peer.getPeerIdentity().getConnection();
+        peer.getOperations(connection);
+        connection.close();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (closes.get() == 0) {
+            assertTrue("Close was never reported", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void testReleasedPeerStopsWatching() throws Exception {
+        final Connection connection = peer.getPeerIdentity().getConnection();
+        peer.getOperations(connection);
+        peer.release();
+        // a caller which still holds the peer does not make it watch again
+        assertSame(connection, peer.getPeerIdentity().getConnection());
+        final CountDownLatch closed = new CountDownLatch(1);
+        connection.addCloseHandler((c, e) -> closed.countDown());
+        connection.close();
+        assertTrue("Connection close handlers did not run", closed.await(10, TimeUnit.SECONDS));
+        // the handlers run one after another, in no particular order
+        Thread.sleep(100);
+        assertEquals(0, closes.get());
+    }
+
+    @Test
+    public void testRecoverSeveralPages() throws Exception {
+        final Xid[] inDoubt = inDoubt(RecoveryCursor.PAGE_SIZE * 2 + 1);
+        provider.inDoubt = inDoubt;
+        // the way a transaction manager scans: everything in reply to the start, then the end
+        assertEquals(new HashSet<>(Arrays.asList(inDoubt)), new HashSet<>(Arrays.asList(peer.recover(XAResource.TMSTARTRSCAN, "node"))));
+        assertEquals(0, peer.recover(XAResource.TMENDRSCAN, "node").length);
+        // and all at once
+        assertEquals(inDoubt.length, peer.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN, "node").length);
+    }
+
+    @Test
+    public void testRecoverReportsEachTransactionOnce() throws Exception {
+        final Xid[] inDoubt = inDoubt(RecoveryCursor.PAGE_SIZE + 1);
+        final Xid[] withRepeats = Arrays.copyOf(inDoubt, inDoubt.length * 2);
+        for (int i = 0; i < inDoubt.length; i ++) {
+            // another branch of the same transaction
+            final Xid xid = inDoubt[i];
+            withRepeats[inDoubt.length + i] = new SimpleXid(xid.getFormatId(), xid.getGlobalTransactionId(), new byte[] { 9 });
+        }
+        provider.inDoubt = withRepeats;
+        assertEquals(inDoubt.length, peer.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN, "node").length);
+    }
+
+    private static Xid[] inDoubt(final int count) {
+        final Xid[] xids = new Xid[count];
+        for (int i = 0; i < count; i ++) {
+            xids[i] = new SimpleXid(0x1234, new byte[] { (byte) (i >> 8), (byte) i }, new byte[] { 1 });
+        }
+        return xids;
+    }
+
+    @Test
+    public void testTimeoutRoundsUp() {
+        assertEquals(1, RemotingRemoteTransactionPeer.timeoutFor(1L));
+        assertEquals(1, RemotingRemoteTransactionPeer.timeoutFor(999L));
+        assertEquals(1, RemotingRemoteTransactionPeer.timeoutFor(1000L));
+        assertEquals(2, RemotingRemoteTransactionPeer.timeoutFor(1001L));
+        assertEquals(RemotingRemoteTransactionPeer.EXPIRED, RemotingRemoteTransactionPeer.timeoutFor(0L));
+        assertEquals(RemotingRemoteTransactionPeer.EXPIRED, RemotingRemoteTransactionPeer.timeoutFor(-1L));
+    }
+
+    @Test
+    public void testSubSecondRemainingTimeIsSent() throws Exception {
+        try {
+            peer.lookupXid(XID, 500L).beforeCompletion();
+        } catch (XAException e) {
+            // the peer does not know the branch, but it was asked
+            assertEquals(XAException.XAER_NOTA, e.errorCode);
+            return;
+        }
+        fail("Unknown branch was accepted");
+    }
+
+    @Test
+    public void testExpiredIsNotSent() throws Exception {
+        try {
+            peer.lookupXid(XID, 0L).prepare();
+        } catch (XAException e) {
+            assertEquals(XAException.XA_RBTIMEOUT, e.errorCode);
+            return;
+        }
+        fail("Expired branch was prepared");
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.jboss.remoting3.MessageInputStream;
+import org.jboss.remoting3.util.StreamUtils;
+import org.junit.Test;
+import org.wildfly.common.rpc.RemoteExceptionCause;
+
+/**
+ * Tests for the decoding of simple responses.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class ResponseDecoderTestCase {
+
+    @Test
+    public void testSuccess() throws Exception {
+        assertEquals(XAResource.XA_OK, ResponseDecoder.PREPARE.decode(message(Protocol.M_RESP_XA_PREPARE)).intValue());
+        assertNull(ResponseDecoder.COMMIT.decode(message(Protocol.M_RESP_XA_COMMIT)));
+        assertEquals(XAResource.XA_OK, ResponseDecoder.outcomeOf(Protocol.M_RESP_XA_ROLLBACK).decode(message(Protocol.M_RESP_XA_ROLLBACK)).intValue());
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        assertEquals(XAResource.XA_RDONLY, ResponseDecoder.PREPARE.decode(message(Protocol.M_RESP_XA_PREPARE, Protocol.P_XA_RDONLY, 0)).intValue());
+        // only prepares may be read-only
+        assertFailure(ResponseDecoder.COMMIT, message(Protocol.M_RESP_XA_COMMIT, Protocol.P_XA_RDONLY, 0), XAException.XAER_RMFAIL);
+    }
+
+    @Test
+    public void testWrongResponse() throws Exception {
+        assertFailure(ResponseDecoder.COMMIT, message(Protocol.M_RESP_XA_ROLLBACK), XAException.XAER_RMERR);
+    }
+
+    @Test
+    public void testXaError() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(body);
+        data.writeInt(XAException.XA_HEURMIX);
+        RemoteExceptionCause.of(new XAException(XAException.XA_HEURMIX)).writeToStream(data);
+        data.flush();
+        final XAException e = assertFailure(ResponseDecoder.COMMIT, message(Protocol.M_RESP_XA_COMMIT, Protocol.P_XA_ERROR, body.toByteArray()), XAException.XA_HEURMIX);
+        assertNotNull(e.getCause());
+    }
+
+    @Test
+    public void testSecurityException() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(body);
+        RemoteExceptionCause.of(new SecurityException()).writeToStream(data);
+        data.flush();
+        try {
+            ResponseDecoder.ROLLBACK.decode(message(Protocol.M_RESP_XA_ROLLBACK, Protocol.P_SEC_EXC, body.toByteArray()));
+            fail("Expected a security exception");
+        } catch (SecurityException expected) {
+        }
+    }
+
+    @Test
+    public void testUserTransactionRollbackException() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(body);
+        RemoteExceptionCause.of(new RollbackException()).writeToStream(data);
+        data.flush();
+        try {
+            ResponseDecoder.readUserTransactionCommit(message(Protocol.M_RESP_UT_COMMIT, Protocol.P_UT_RB_EXC, body.toByteArray()));
+            fail("Expected a rollback exception");
+        } catch (RollbackException expected) {
+        }
+        ResponseDecoder.readUserTransactionCommit(message(Protocol.M_RESP_UT_COMMIT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoOutcomeDecoder() {
+        ResponseDecoder.outcomeOf(Protocol.M_RESP_XA_FORGET);
+    }
+
+    private static XAException assertFailure(final ResponseDecoder<?> decoder, final MessageInputStream is, final int errorCode) throws IOException {
+        try {
+            decoder.decode(is);
+        } catch (XAException e) {
+            assertEquals(errorCode, e.errorCode);
+            return e;
+        }
+        throw new AssertionError("Expected a failure");
+    }
+
+    private static MessageInputStream message(final int msgId) {
+        return message(new byte[] { (byte) msgId });
+    }
+
+    private static MessageInputStream message(final int msgId, final int param, final int len) {
+        return message(new byte[] { (byte) msgId, (byte) param, (byte) len });
+    }
+
+    private static MessageInputStream message(final int msgId, final int param, final byte[] body) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(msgId);
+        bytes.write(param);
+        StreamUtils.writePackedUnsignedInt31(bytes, body.length);
+        bytes.write(body);
+        return message(bytes.toByteArray());
+    }
+
+    private static MessageInputStream message(final byte[] bytes) {
+        final ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+        return new MessageInputStream() {
+            public int read() {
+                return is.read();
+            }
+
+            public int read(final byte[] b, final int off, final int len) {
+                return is.read(b, off, len);
+            }
+        };
+    }
+}
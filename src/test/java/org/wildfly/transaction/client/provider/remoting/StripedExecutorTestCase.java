@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the per-stripe ordering of the striped executor.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class StripedExecutorTestCase {
+
+    @Test
+    public void testStripeKeepsSubmissionOrder() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final StripedExecutor executor = new StripedExecutor(pool, 4);
+            final int count = 1000;
+            final List<Integer> first = Collections.synchronizedList(new ArrayList<>());
+            final List<Integer> second = Collections.synchronizedList(new ArrayList<>());
+            final CountDownLatch done = new CountDownLatch(count * 2);
+            for (int i = 0; i < count; i ++) {
+                final int n = i;
+                executor.execute(1, () -> { first.add(n); done.countDown(); });
+                executor.execute(2, () -> { second.add(n); done.countDown(); });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < count; i ++) {
+                assertEquals(i, first.get(i).intValue());
+                assertEquals(i, second.get(i).intValue());
+            }
+            assertEquals(0L, executor.getQueueDepth());
+            assertEquals(count * 2, executor.getDispatchedCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLongRunYieldsThread() {
+        final ArrayDeque<Runnable> submitted = new ArrayDeque<>();
+        final StripedExecutor executor = new StripedExecutor(submitted::add, 1);
+        final List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 20; i ++) {
+            final int n = i;
+            executor.execute(7, () -> ran.add(n));
+        }
+        // the stripe is only handed to the delegate once while it has work
+        assertEquals(1, submitted.size());
+        final Runnable stripe = submitted.poll();
+        stripe.run();
+        assertEquals(16, ran.size());
+        // the rest wait for the stripe to be run again
+        assertEquals(1, submitted.size());
+        assertEquals(4L, executor.getQueueDepth());
+        submitted.poll().run();
+        assertEquals(20, ran.size());
+        assertTrue(submitted.isEmpty());
+        for (int i = 0; i < 20; i ++) {
+            assertEquals(i, ran.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testRejectedTaskRunsOnCaller() {
+        final StripedExecutor executor = new StripedExecutor(task -> { throw new RejectedExecutionException(); }, 2);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 20; i ++) {
+            executor.execute(i, () -> threads.add(Thread.currentThread()));
+        }
+        assertEquals(20, threads.size());
+        for (Thread thread : threads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+        assertEquals(0L, executor.getQueueDepth());
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopStripe() {
+        final ArrayDeque<Runnable> submitted = new ArrayDeque<>();
+        final StripedExecutor executor = new StripedExecutor(submitted::add, 1);
+        final List<Integer> ran = new ArrayList<>();
+        executor.execute(0, () -> { throw new IllegalStateException(); });
+        executor.execute(0, () -> ran.add(1));
+        submitted.poll().run();
+        assertEquals(Collections.singletonList(1), ran);
+        assertEquals(2L, executor.getDispatchedCount());
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.wildfly.common.Assert;
+import org.wildfly.common.annotation.NotNull;
+import org.wildfly.transaction.client.ImportResult;
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client.XAImporter;
+import org.wildfly.transaction.client.spi.LocalTransactionProvider;
+import org.wildfly.transaction.client.spi.SubordinateTransactionControl;
+
+/**
+ * A transaction provider whose transactions only keep track of their status, whose importer finds a given set of
+ * branches, and whose recovery scans report a given list of branches.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class TestTransactionProvider implements LocalTransactionProvider {
+    private final ThreadLocal<Transaction> current = new ThreadLocal<>();
+    private final TransactionManager transactionManager = new TransactionManager() {
+        public void begin() {
+            throw Assert.unsupported();
+        }
+
+        public void commit() {
+            throw Assert.unsupported();
+        }
+
+        public void rollback() {
+            throw Assert.unsupported();
+        }
+
+        public void setRollbackOnly() {
+            throw Assert.unsupported();
+        }
+
+        public int getStatus() throws SystemException {
+            final Transaction transaction = current.get();
+            return transaction == null ? Status.STATUS_NO_TRANSACTION : transaction.getStatus();
+        }
+
+        public Transaction getTransaction() {
+            return current.get();
+        }
+
+        public void setTransactionTimeout(final int seconds) {
+        }
+
+        public Transaction suspend() {
+            try {
+                return current.get();
+            } finally {
+                current.remove();
+            }
+        }
+
+        public void resume(final Transaction transaction) throws InvalidTransactionException {
+            current.set(transaction);
+        }
+    };
+
+    @NotNull
+    public TransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    private final XAImporter xaImporter = new XAImporter() {
+        private final XAImporter empty = LocalTransactionProvider.EMPTY.getXAImporter();
+
+        public ImportResult<?> findOrImportTransaction(final Xid xid, final int timeout, final boolean doNotImport) throws XAException {
+            importLookups.incrementAndGet();
+            final TestTransaction transaction = imported.get(SimpleXid.of(xid));
+            if (transaction != null) {
+                return new ImportResult<>(transaction, SubordinateTransactionControl.EMPTY, false);
+            }
+            return empty.findOrImportTransaction(xid, timeout, doNotImport);
+        }
+
+        public Transaction findExistingTransaction(final Xid xid) throws XAException {
+            return empty.findExistingTransaction(xid);
+        }
+
+        public void commit(final Xid xid, final boolean onePhase) throws XAException {
+            empty.commit(xid, onePhase);
+        }
+
+        public void forget(final Xid xid) throws XAException {
+            empty.forget(xid);
+        }
+
+        public Xid[] recover(final int flag, final String parentName) {
+            // everything is reported at the start of the scan
+            return (flag & XAResource.TMSTARTRSCAN) != 0 ? inDoubt.clone() : SimpleXid.NO_XIDS;
+        }
+    };
+
+    // the branches found by the importer, and how many times it was asked
+    final ConcurrentHashMap<SimpleXid, TestTransaction> imported = new ConcurrentHashMap<>();
+    final AtomicInteger importLookups = new AtomicInteger();
+
+    // the branches reported by a recovery scan
+    volatile Xid[] inDoubt = SimpleXid.NO_XIDS;
+
+    @NotNull
+    public XAImporter getXAImporter() {
+        return xaImporter;
+    }
+
+    @NotNull
+    public Transaction createNewTransaction(final int timeout) {
+        return new TestTransaction(timeout);
+    }
+
+    public boolean isImported(@NotNull final Transaction transaction) {
+        return false;
+    }
+
+    public void registerInterposedSynchronization(@NotNull final Transaction transaction, @NotNull final Synchronization sync) {
+        throw Assert.unsupported();
+    }
+
+    public Object getResource(@NotNull final Transaction transaction, @NotNull final Object key) {
+        return ((TestTransaction) transaction).resources.get(key);
+    }
+
+    public void putResource(@NotNull final Transaction transaction, @NotNull final Object key, final Object value) {
+        ((TestTransaction) transaction).resources.put(key, value);
+    }
+
+    public Object putResourceIfAbsent(@NotNull final Transaction transaction, @NotNull final Object key, final Object value) {
+        return ((TestTransaction) transaction).resources.putIfAbsent(key, value);
+    }
+
+    public boolean getRollbackOnly(@NotNull final Transaction transaction) {
+        return false;
+    }
+
+    @NotNull
+    public Object getKey(@NotNull final Transaction transaction) {
+        return transaction;
+    }
+
+    public void commitLocal(@NotNull final Transaction transaction) {
+        ((TestTransaction) transaction).status = Status.STATUS_COMMITTED;
+    }
+
+    public void rollbackLocal(@NotNull final Transaction transaction) {
+        ((TestTransaction) transaction).status = Status.STATUS_ROLLEDBACK;
+    }
+
+    public void dropLocal(@NotNull final Transaction transaction) {
+    }
+
+    public int getTimeout(@NotNull final Transaction transaction) {
+        return ((TestTransaction) transaction).timeout;
+    }
+
+    @NotNull
+    public Xid getXid(@NotNull final Transaction transaction) {
+        return SimpleXid.EMPTY;
+    }
+
+    @NotNull
+    public String getNodeName() {
+        return "test";
+    }
+
+    static final class TestTransaction implements Transaction {
+        final ConcurrentHashMap<Object, Object> resources = new ConcurrentHashMap<>();
+        final int timeout;
+        volatile int status = Status.STATUS_ACTIVE;
+
+        TestTransaction(final int timeout) {
+            this.timeout = timeout;
+        }
+
+        public void commit() {
+            throw Assert.unsupported();
+        }
+
+        public boolean delistResource(final XAResource xaRes, final int flag) {
+            throw Assert.unsupported();
+        }
+
+        public boolean enlistResource(final XAResource xaRes) {
+            throw Assert.unsupported();
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void registerSynchronization(final Synchronization sync) {
+            throw Assert.unsupported();
+        }
+
+        public void rollback() {
+            throw Assert.unsupported();
+        }
+
+        public void setRollbackOnly() {
+            throw Assert.unsupported();
+        }
+    }
+}
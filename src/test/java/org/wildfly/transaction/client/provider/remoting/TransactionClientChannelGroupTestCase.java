@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.Registration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.wildfly.transaction.client.SimpleXid;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+
+/**
+ * Tests for the replacement of closed channels in a channel group, and for the channel affinity of XIDs.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class TransactionClientChannelGroupTestCase {
+    private LoopbackEndpoint loopback;
+    private Registration registration;
+    private Connection connection;
+    private TransactionClientChannel[] channels;
+    private TransactionClientChannelGroup group;
+
+    @Before
+    public void setUp() throws IOException {
+        loopback = new LoopbackEndpoint();
+        registration = RemotingTransactionService.builder()
+            .setEndpoint(loopback.getEndpoint())
+            .setTransactionContext(new LocalTransactionContext(new TestTransactionProvider()))
+            .build()
+            .register();
+        connection = loopback.connect();
+        channels = new TransactionClientChannel[] { openChannel(), openChannel() };
+        group = new TransactionClientChannelGroup(connection, channels.clone());
+    }
+
+    private TransactionClientChannel openChannel() throws IOException {
+        return TransactionClientChannel.construct(connection.openChannel("txn", OptionMap.EMPTY).get()).get();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IoUtils.safeClose(connection);
+        IoUtils.safeClose(registration);
+        IoUtils.safeClose(loopback);
+    }
+
+    @Test
+    public void testClosedChannelIsReplaced() throws Exception {
+        channels[0].getChannel().close();
+        // every XID is still served while the replacement opens, and after
+        assertAllServed();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (group.getChannelCount() < 2) {
+            assertTrue("Channel was never replaced", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        assertAllServed();
+    }
+
+    @Test
+    public void testLastChannelIsReplaced() throws Exception {
+        channels[0].getChannel().close();
+        channels[1].getChannel().close();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (group.getChannelCount() < 2) {
+            assertTrue("Channels were never replaced", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        assertAllServed();
+    }
+
+    @Test
+    public void testTransactionStaysOnItsChannel() throws Exception {
+        // on the second channel, which moves to the first position once the first channel is replaced
+        final SimpleXid xid = xidOn(channels[1]);
+        channels[0].getChannel().close();
+        awaitReplacement();
+        assertSame(channels[1], group.channelFor(xid));
+    }
+
+    @Test
+    public void testCompletionDropsAffinity() throws Exception {
+        final SimpleXid xid = xidOn(channels[1]);
+        try {
+            group.commit(xid, false, connection.getConnectionPeerIdentity());
+            fail("Expected the branch to be unknown");
+        } catch (XAException e) {
+            assertEquals(XAException.XAER_NOTA, e.errorCode);
+        }
+        channels[0].getChannel().close();
+        awaitReplacement();
+        // picked by hash again
+        assertNotSame(channels[1], group.channelFor(xid));
+    }
+
+    @Test
+    public void testClosedChannelDropsAffinity() throws Exception {
+        final SimpleXid xid = xidOn(channels[0]);
+        channels[0].getChannel().close();
+        awaitReplacement();
+        final TransactionClientChannel channel = group.channelFor(xid);
+        assertNotSame(channels[0], channel);
+        assertTrue(channel.getChannel().isOpen());
+    }
+
+    private SimpleXid xidOn(final TransactionClientChannel channel) {
+        for (int i = 0;; i ++) {
+            final SimpleXid xid = new SimpleXid(0x1234, new byte[] { (byte) i }, new byte[] { 1 });
+            if (group.channelFor(xid) == channel) {
+                return xid;
+            }
+        }
+    }
+
+    private void awaitReplacement() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (group.getChannelCount() < 2) {
+            assertTrue("Channel was never replaced", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    private void assertAllServed() {
+        for (int i = 0; i < 16; i ++) {
+            final SimpleXid xid = new SimpleXid(0x1234, new byte[] { (byte) i }, new byte[] { 1 });
+            try {
+                group.rollback(xid, connection.getConnectionPeerIdentity());
+                fail("Expected the branch to be unknown");
+            } catch (XAException e) {
+                // answered by the peer
+                assertEquals(XAException.XAER_NOTA, e.errorCode);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+
+import org.jboss.remoting3.Channel;
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.MessageInputStream;
+import org.jboss.remoting3.MessageOutputStream;
+import org.jboss.remoting3.Registration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wildfly.transaction.client.LocalTransaction;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.wildfly.transaction.client.SimpleXid;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+
+/**
+ * Tests for the server side of the transaction protocol, driven by hand-written requests.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class TransactionServerChannelTestCase {
+    private final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+    private final TestTransactionProvider provider = new TestTransactionProvider();
+    private LoopbackEndpoint loopback;
+    private RemotingTransactionService service;
+    private Registration registration;
+    private Connection connection;
+    private Channel channel;
+    private int nextInvId = 1;
+
+    @Before
+    public void setUp() throws IOException {
+        loopback = new LoopbackEndpoint();
+        service = RemotingTransactionService.builder()
+            .setEndpoint(loopback.getEndpoint())
+            .setTransactionContext(new LocalTransactionContext(provider))
+            .build();
+        registration = service.register();
+        connection = loopback.connect();
+        channel = connection.openChannel("txn", OptionMap.EMPTY).get();
+        channel.receiveMessage(new Channel.Receiver() {
+            public void handleMessage(final Channel channel, final MessageInputStream message) {
+                channel.receiveMessage(this);
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (MessageInputStream is = message) {
+                    int b;
+                    while ((b = is.read()) != -1) {
+                        bytes.write(b);
+                    }
+                } catch (IOException e) {
+                    IoUtils.safeClose(channel);
+                    return;
+                }
+                responses.add(bytes.toByteArray());
+            }
+
+            public void handleError(final Channel channel, final IOException error) {
+            }
+
+            public void handleEnd(final Channel channel) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IoUtils.safeClose(channel);
+        IoUtils.safeClose(connection);
+        IoUtils.safeClose(registration);
+        IoUtils.safeClose(loopback);
+    }
+
+    @Test
+    public void testUnknownSecurityContext() throws Exception {
+        final SimpleXid xid = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+        final int invId = nextInvId ++;
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(invId);
+            os.writeByte(Protocol.M_XA_ROLLBACK);
+            Protocol.writeParam(Protocol.P_XID, os, xid);
+            // never handed out by the connection
+            Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, 0x7654321, Protocol.UNSIGNED);
+        }
+        assertResponse(invId, Protocol.M_RESP_XA_ROLLBACK, Protocol.P_SEC_EXC);
+    }
+
+    @Test
+    public void testOneWayUnknownSecurityContext() throws Exception {
+        final SimpleXid xid = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(Protocol.ONE_WAY_INV_ID);
+            os.writeByte(Protocol.M_XA_RB_ONLY);
+            Protocol.writeParam(Protocol.P_XID, os, xid);
+            Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, 0x7654321, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_NO_REPLY, os);
+        }
+        // refused quietly, and the channel still answers
+        assertNull(responses.poll(300, TimeUnit.MILLISECONDS));
+        testUnknownSecurityContext();
+    }
+
+    @Test
+    public void testFreedXidHandleIsDropped() throws Exception {
+        final SimpleXid xid = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+        // binds the handle; the branch is unknown, which does not matter here
+        int invId = nextInvId ++;
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(invId);
+            os.writeByte(Protocol.M_XA_ROLLBACK);
+            Protocol.writeParam(Protocol.P_XID, os, xid);
+            Protocol.writeParam(Protocol.P_XID_HANDLE, os, 7, Protocol.UNSIGNED);
+        }
+        assertResponse(invId, Protocol.M_RESP_XA_ROLLBACK, Protocol.P_XA_ERROR);
+        invId = nextInvId ++;
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(invId);
+            os.writeByte(Protocol.M_XA_ROLLBACK);
+            Protocol.writeParam(Protocol.P_XID_HANDLE_FREE, os, 7, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_XID, os, new SimpleXid(0x1234, new byte[] { 5 }, new byte[] { 6 }));
+        }
+        assertResponse(invId, Protocol.M_RESP_XA_ROLLBACK, Protocol.P_XA_ERROR);
+        invId = nextInvId ++;
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(invId);
+            os.writeByte(Protocol.M_XA_ROLLBACK);
+            Protocol.writeParam(Protocol.P_XID_HANDLE, os, 7, Protocol.UNSIGNED);
+        }
+        final byte[] response = responses.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No response", response);
+        assertEquals(3, response.length);
+        assertEquals(Protocol.M_RESP_PARAM_ERROR, response[2] & 0xff);
+    }
+
+    @Test
+    public void testFoundTransactionIsReused() throws Exception {
+        final SimpleXid xid = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+        provider.imported.put(xid, new TestTransactionProvider.TestTransaction(300));
+        final TransactionServerChannel serverChannel = newServerChannel();
+        final LocalTransaction transaction = serverChannel.findTransaction(xid, true).getTransaction();
+        provider.importLookups.set(0);
+        assertSame(transaction, serverChannel.findTransaction(xid, true).getTransaction());
+        assertSame(transaction, serverChannel.findTransaction(xid, true).getTransaction());
+        assertEquals(0, provider.importLookups.get());
+    }
+
+    @Test
+    public void testCompletedTransactionIsLookedUpAgain() throws Exception {
+        final SimpleXid xid = new SimpleXid(0x1234, new byte[] { 1, 2, 3 }, new byte[] { 4 });
+        final TestTransactionProvider.TestTransaction completed = new TestTransactionProvider.TestTransaction(300);
+        provider.imported.put(xid, completed);
+        final TransactionServerChannel serverChannel = newServerChannel();
+        assertNotNull(serverChannel.findTransaction(xid, true));
+        // finished behind the channel's back, such as by recovery on another channel
+        completed.status = Status.STATUS_COMMITTED;
+        provider.imported.remove(xid);
+        provider.importLookups.set(0);
+        assertNull(serverChannel.findTransaction(xid, true));
+        assertEquals(1, provider.importLookups.get());
+        // a branch imported again under the same XID is found afresh
+        final TestTransactionProvider.TestTransaction reimported = new TestTransactionProvider.TestTransaction(300);
+        provider.imported.put(xid, reimported);
+        final LocalTransaction transaction = serverChannel.findTransaction(xid, true).getTransaction();
+        assertEquals(Status.STATUS_ACTIVE, transaction.getStatus());
+        assertEquals(2, provider.importLookups.get());
+    }
+
+    @Test
+    public void testCommitAfterReap() throws Exception {
+        final int context = 0x1234;
+        final LocalTransaction transaction = beginAndAwaitReap(context);
+        assertEquals(Status.STATUS_ROLLEDBACK, transaction.getStatus());
+        final int invId = nextInvId ++;
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(invId);
+            os.writeByte(Protocol.M_UT_COMMIT);
+            Protocol.writeParam(Protocol.P_TXN_CONTEXT, os, context, Protocol.UNSIGNED);
+        }
+        // not "nothing to commit"
+        assertResponse(invId, Protocol.M_RESP_UT_COMMIT, Protocol.P_UT_RB_EXC);
+    }
+
+    @Test
+    public void testCommitAfterReapWithUnknownSecurityContext() throws Exception {
+        final int context = 0x1235;
+        beginAndAwaitReap(context);
+        final int invId = nextInvId ++;
+        try (MessageOutputStream os = channel.writeMessage()) {
+            os.writeShort(invId);
+            os.writeByte(Protocol.M_UT_COMMIT);
+            Protocol.writeParam(Protocol.P_TXN_CONTEXT, os, context, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, 0x7654321, Protocol.UNSIGNED);
+        }
+        // the outcome is reported the same way as for a rollback
+        assertResponse(invId, Protocol.M_RESP_UT_COMMIT, Protocol.P_UT_RB_EXC);
+    }
+
+    private TransactionServerChannel newServerChannel() throws Exception {
+        final Connection accepted = loopback.getAcceptedConnection(connection);
+        final RemotingTransactionServer server = service.getServerForConnection(accepted);
+        // never started, so only used for its lookups; attached to the client side so the served channel is left alone
+        return new TransactionServerChannel(server, channel, service.getTransactionContext());
+    }
+
+    private LocalTransaction beginAndAwaitReap(final int context) throws Exception {
+        assumeTrue("The reaper is disabled", IdleTransactionReaper.isEnabled());
+        final RemotingTransactionServer server = service.getServerForConnection(loopback.getAcceptedConnection(connection));
+        final LocalTransaction transaction = server.getOrBeginTransaction(context, 1);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1) + IdleTransactionReaper.GRACE_NANOS + TimeUnit.SECONDS.toNanos(10);
+        // the orphan is rolled back after it has been counted
+        while (service.getReapedTransactionCount() == 0 || transaction.getStatus() != Status.STATUS_ROLLEDBACK) {
+            assertTrue("Transaction was never reaped and rolled back", System.nanoTime() - deadline < 0);
+            Thread.sleep(50);
+        }
+        return transaction;
+    }
+
+    private void assertResponse(final int invId, final int respId, final int param) throws InterruptedException {
+        final byte[] response = responses.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No response", response);
+        assertTrue("Response too short", response.length >= 4);
+        assertEquals(invId, (response[0] & 0xff) << 8 | response[1] & 0xff);
+        assertEquals(respId, response[2] & 0xff);
+        assertEquals(param, response[3] & 0xff);
+    }
+}
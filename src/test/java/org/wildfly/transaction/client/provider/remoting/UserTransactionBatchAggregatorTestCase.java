@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.Registration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wildfly.transaction.client.LocalTransaction;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+
+/**
+ * Tests for the gathering of user transaction completions into batch messages.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class UserTransactionBatchAggregatorTestCase {
+    private LoopbackEndpoint loopback;
+    private RemotingTransactionService service;
+    private Registration registration;
+    private Connection connection;
+    private TransactionClientChannel channel;
+    private RemotingTransactionServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback = new LoopbackEndpoint();
+        service = RemotingTransactionService.builder()
+            .setEndpoint(loopback.getEndpoint())
+            .setTransactionContext(new LocalTransactionContext(new TestTransactionProvider()))
+            .build();
+        registration = service.register();
+        connection = loopback.connect();
+        channel = TransactionClientChannel.construct(connection.openChannel("txn", OptionMap.EMPTY).get()).get();
+        server = service.getServerForConnection(loopback.getAcceptedConnection(connection));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IoUtils.safeClose(connection);
+        IoUtils.safeClose(registration);
+        IoUtils.safeClose(loopback);
+    }
+
+    @Test
+    public void testFullBatchIsSentAtOnce() throws Exception {
+        // the window never closes, so only a full batch can be sent
+        final UserTransactionBatchAggregator aggregator = commitAggregator(TimeUnit.HOURS.toNanos(1), 2);
+        final LocalTransaction first = server.getOrBeginTransaction(1, 300);
+        final LocalTransaction second = server.getOrBeginTransaction(2, 300);
+        final CompletableFuture<Void> firstOutcome = aggregator.submit(1, 0);
+        Thread.sleep(100);
+        assertFalse(firstOutcome.isDone());
+        aggregator.submit(2, 0).get(10, TimeUnit.SECONDS);
+        firstOutcome.get(10, TimeUnit.SECONDS);
+        assertEquals(Status.STATUS_COMMITTED, first.getStatus());
+        assertEquals(Status.STATUS_COMMITTED, second.getStatus());
+    }
+
+    @Test
+    public void testWindowSendsPartialBatch() throws Exception {
+        final UserTransactionBatchAggregator aggregator = new UserTransactionBatchAggregator(channel, Protocol.M_UT_BATCH_ROLLBACK, Protocol.M_RESP_UT_BATCH_ROLLBACK, TimeUnit.MILLISECONDS.toNanos(20), 64);
+        final LocalTransaction transaction = server.getOrBeginTransaction(1, 300);
+        aggregator.submit(1, 0).get(10, TimeUnit.SECONDS);
+        assertEquals(Status.STATUS_ROLLEDBACK, transaction.getStatus());
+    }
+
+    @Test
+    public void testEachEntryHasItsOwnOutcome() throws Exception {
+        assumeTrue("The reaper is disabled", IdleTransactionReaper.isEnabled());
+        final UserTransactionBatchAggregator aggregator = commitAggregator(TimeUnit.HOURS.toNanos(1), 3);
+        final LocalTransaction reaped = server.getOrBeginTransaction(1, 1);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1) + IdleTransactionReaper.GRACE_NANOS + TimeUnit.SECONDS.toNanos(10);
+        while (service.getReapedTransactionCount() == 0) {
+            assertTrue("Transaction was never reaped", System.nanoTime() - deadline < 0);
+            Thread.sleep(50);
+        }
+        final LocalTransaction live = server.getOrBeginTransaction(2, 300);
+        final CompletableFuture<Void> reapedOutcome = aggregator.submit(1, 0);
+        final CompletableFuture<Void> liveOutcome = aggregator.submit(2, 0);
+        // nothing to commit
+        final CompletableFuture<Void> unknownOutcome = aggregator.submit(3, 0);
+        try {
+            reapedOutcome.get(10, TimeUnit.SECONDS);
+            fail("Expected the reaped transaction to be reported as rolled back");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RollbackException);
+        }
+        liveOutcome.get(10, TimeUnit.SECONDS);
+        unknownOutcome.get(10, TimeUnit.SECONDS);
+        assertEquals(Status.STATUS_COMMITTED, live.getStatus());
+        assertFalse(reaped.getStatus() == Status.STATUS_COMMITTED);
+    }
+
+    private UserTransactionBatchAggregator commitAggregator(final long windowNanos, final int maxSize) {
+        return new UserTransactionBatchAggregator(channel, Protocol.M_UT_BATCH_COMMIT, Protocol.M_RESP_UT_BATCH_COMMIT, windowNanos, maxSize);
+    }
+}
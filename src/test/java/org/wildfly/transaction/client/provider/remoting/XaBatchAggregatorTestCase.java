@@ -0,0 +1,154 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+
+import org.jboss.remoting3.Connection;
+import org.jboss.remoting3.ConnectionPeerIdentity;
+import org.jboss.remoting3.Registration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wildfly.transaction.client.LocalTransactionContext;
+import org.wildfly.transaction.client.SimpleXid;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+
+/**
+ * Tests for the gathering of XA requests into batch messages.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class XaBatchAggregatorTestCase {
+    private LoopbackEndpoint loopback;
+    private Registration registration;
+    private Connection connection;
+    private TransactionClientChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        loopback = new LoopbackEndpoint();
+        registration = RemotingTransactionService.builder()
+            .setEndpoint(loopback.getEndpoint())
+            .setTransactionContext(new LocalTransactionContext(new TestTransactionProvider()))
+            .build()
+            .register();
+        connection = loopback.connect();
+        channel = TransactionClientChannel.construct(connection.openChannel("txn", OptionMap.EMPTY).get()).get();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IoUtils.safeClose(connection);
+        IoUtils.safeClose(registration);
+        IoUtils.safeClose(loopback);
+    }
+
+    @Test
+    public void testFullBatchIsSentAtOnce() throws Exception {
+        // the window never closes, so only a full batch can be sent
+        final XaBatchAggregator aggregator = rollbackAggregator(TimeUnit.HOURS.toNanos(1), 3);
+        final ConnectionPeerIdentity peerIdentity = connection.getConnectionPeerIdentity();
+        final CompletableFuture<Integer> first = aggregator.submit(xid(1), peerIdentity, false, 0);
+        final CompletableFuture<Integer> second = aggregator.submit(xid(2), peerIdentity, false, 0);
+        Thread.sleep(100);
+        assertFalse(first.isDone());
+        final CompletableFuture<Integer> third = aggregator.submit(xid(3), peerIdentity, false, 0);
+        // each entry gets its own outcome
+        assertUnknown(first);
+        assertUnknown(second);
+        assertUnknown(third);
+    }
+
+    @Test
+    public void testWindowSendsPartialBatch() throws Exception {
+        final XaBatchAggregator aggregator = rollbackAggregator(TimeUnit.MILLISECONDS.toNanos(20), 64);
+        final ConnectionPeerIdentity peerIdentity = connection.getConnectionPeerIdentity();
+        final CompletableFuture<Integer> first = aggregator.submit(xid(1), peerIdentity, false, 0);
+        final CompletableFuture<Integer> second = aggregator.submit(xid(2), peerIdentity, false, 0);
+        assertUnknown(first);
+        assertUnknown(second);
+    }
+
+    @Test
+    public void testBatchOfOneIsSentAlone() throws Exception {
+        final XaBatchAggregator aggregator = rollbackAggregator(TimeUnit.MILLISECONDS.toNanos(20), 64);
+        assertUnknown(aggregator.submit(xid(1), connection.getConnectionPeerIdentity(), false, 0));
+    }
+
+    @Test
+    public void testOnePhaseIsBatchedSeparately() throws Exception {
+        final XaBatchAggregator aggregator = new XaBatchAggregator(channel, Protocol.M_XA_COMMIT, Protocol.M_RESP_XA_COMMIT, Protocol.M_XA_BATCH_COMMIT, Protocol.M_RESP_XA_BATCH_COMMIT, XAException.XAER_RMFAIL, TimeUnit.HOURS.toNanos(1), 2);
+        final ConnectionPeerIdentity peerIdentity = connection.getConnectionPeerIdentity();
+        final CompletableFuture<Integer> onePhase = aggregator.submit(xid(1), peerIdentity, true, 0);
+        final CompletableFuture<Integer> twoPhase = aggregator.submit(xid(2), peerIdentity, false, 0);
+        Thread.sleep(100);
+        // neither batch is full
+        assertFalse(onePhase.isDone() || twoPhase.isDone());
+        final CompletableFuture<Integer> third = aggregator.submit(xid(3), peerIdentity, true, 0);
+        try {
+            third.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException ignored) {
+            // answered
+        }
+        assertTrue(onePhase.isDone());
+        assertFalse(twoPhase.isDone());
+    }
+
+    @Test
+    public void testEntryTimeout() throws Exception {
+        final XaBatchAggregator aggregator = rollbackAggregator(TimeUnit.HOURS.toNanos(1), 64);
+        final CompletableFuture<Integer> future = aggregator.submit(xid(1), connection.getConnectionPeerIdentity(), false, 1);
+        assertFailure(future, XAException.XAER_RMFAIL);
+    }
+
+    private XaBatchAggregator rollbackAggregator(final long windowNanos, final int maxSize) {
+        return new XaBatchAggregator(channel, Protocol.M_XA_ROLLBACK, Protocol.M_RESP_XA_ROLLBACK, Protocol.M_XA_BATCH_ROLLBACK, Protocol.M_RESP_XA_BATCH_ROLLBACK, XAException.XAER_RMERR, windowNanos, maxSize);
+    }
+
+    private static SimpleXid xid(final int i) {
+        return new SimpleXid(0x1234, new byte[] { (byte) i }, new byte[] { 1 });
+    }
+
+    private static void assertUnknown(final CompletableFuture<Integer> future) throws Exception {
+        // the test provider knows of no XA transactions
+        assertFailure(future, XAException.XAER_NOTA);
+    }
+
+    private static void assertFailure(final CompletableFuture<Integer> future, final int errorCode) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof XAException);
+            assertEquals(errorCode, ((XAException) e.getCause()).errorCode);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2017 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.transaction.xa.Xid;
+
+import org.junit.Test;
+import org.wildfly.transaction.client.SimpleXid;
+
+/**
+ * Tests for the assignment and recycling of XID handles.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class XidHandleTableTestCase {
+
+    @Test
+    public void testHandleIsSharedAndBound() {
+        final XidHandleTable table = new XidHandleTable(4);
+        final XidHandleTable.Handle first = table.acquire(xid(1));
+        assertFalse(first.isBound());
+        assertSame(first, table.acquire(xid(1)));
+        table.release(first, true, false);
+        assertTrue(first.isBound());
+        table.release(first, false, false);
+        assertSame(first, table.acquire(xid(1)));
+    }
+
+    @Test
+    public void testExhaustedTableFallsBack() {
+        final XidHandleTable table = new XidHandleTable(2);
+        final XidHandleTable.Handle first = table.acquire(xid(1));
+        assertNotNull(table.acquire(xid(2)));
+        // all in use, so nothing can be reclaimed
+        assertNull(table.acquire(xid(3)));
+        assertEquals(0, table.takeUnannounced().length);
+        table.release(first, true, true);
+        // given up, but not assigned again before the peer has dropped it
+        assertNull(table.acquire(xid(3)));
+        final int[] ids = table.takeUnannounced();
+        assertArrayEquals(new int[] { first.getId() }, ids);
+        assertNull(table.acquire(xid(3)));
+        table.announced(ids, true);
+        final XidHandleTable.Handle third = table.acquire(xid(3));
+        assertEquals(first.getId(), third.getId());
+        assertFalse(third.isBound());
+    }
+
+    @Test
+    public void testUnansweredAnnouncementIsRepeated() {
+        final XidHandleTable table = new XidHandleTable(1);
+        table.release(table.acquire(xid(1)), true, true);
+        final int[] ids = table.takeUnannounced();
+        table.announced(ids, false);
+        assertNull(table.acquire(xid(2)));
+        assertArrayEquals(ids, table.takeUnannounced());
+    }
+
+    @Test
+    public void testIdleHandleIsReclaimedWhenFull() {
+        final XidHandleTable table = new XidHandleTable(2);
+        final XidHandleTable.Handle first = table.acquire(xid(1));
+        final XidHandleTable.Handle second = table.acquire(xid(2));
+        table.release(first, true, false);
+        table.release(second, true, false);
+        // the first one has been idle the longest
+        table.acquire(xid(2));
+        assertNull(table.acquire(xid(3)));
+        final int[] ids = table.takeUnannounced();
+        assertArrayEquals(new int[] { first.getId() }, ids);
+        table.announced(ids, true);
+        assertEquals(first.getId(), table.acquire(xid(3)).getId());
+        // the first XID is assigned a new handle if it is used again
+        table.release(second, true, true);
+        table.announced(table.takeUnannounced(), true);
+        final XidHandleTable.Handle again = table.acquire(xid(1));
+        assertFalse(again.isBound());
+    }
+
+    @Test
+    public void testCompletionWithoutHandle() {
+        final XidHandleTable table = new XidHandleTable(1);
+        final XidHandleTable.Handle first = table.acquire(xid(1));
+        table.release(first, true, false);
+        // for example, a one-way forget
+        table.complete(xid(1));
+        table.announced(table.takeUnannounced(), true);
+        assertEquals(first.getId(), table.acquire(xid(2)).getId());
+    }
+
+    @Test
+    public void testCompletionWhileInUse() {
+        final XidHandleTable table = new XidHandleTable(1);
+        final XidHandleTable.Handle first = table.acquire(xid(1));
+        table.complete(xid(1));
+        assertEquals(0, table.takeUnannounced().length);
+        table.release(first, true, false);
+        assertArrayEquals(new int[] { first.getId() }, table.takeUnannounced());
+    }
+
+    private static Xid xid(final int i) {
+        return new SimpleXid(0x1234, new byte[] { (byte) i }, new byte[] { 1 });
+    }
+}